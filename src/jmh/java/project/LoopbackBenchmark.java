@@ -0,0 +1,126 @@
+package project;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import project.PacketHelper.Packet;
+import project.PacketHelper.PacketType;
+
+/**
+ * One MATH request and its RESULT over loopback, against a server running in the same process.
+ * Covers everything a request goes through: encoding, the socket, the server's read, decode, evaluation, write, and decoding the result.
+ * The expression is the same every time, so it is answered from the expression cache after the first request.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoopbackBenchmark {
+    private static final String HOST = "127.0.0.1";
+
+    @Param({ "reactor", "vthreads" })
+    public String mode;
+
+    @Param({ "JSON", "BINARY" })
+    public PacketHelper.Codec codec;
+
+    private Runnable stopServer;
+    private SocketChannel socket;
+    private final PacketHelper.FrameDecoder decoder = new PacketHelper.FrameDecoder();
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(16 * 1024);
+    private ByteBuffer request;
+
+    @Setup
+    public void setup() throws IOException, InterruptedException {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        // keep the console quiet, the server logs every connection
+        App.getLogger().setLevel(App.LogLevel.WARN);
+        Thread thread;
+        if (mode.equals("vthreads")) {
+            VirtualThreadServer server = new VirtualThreadServer(HOST, port);
+            thread = new Thread(server::start);
+            stopServer = server::stop;
+        } else {
+            Server server = new Server(HOST, port);
+            thread = new Thread(server::start);
+            stopServer = server::stop;
+        }
+        thread.setDaemon(true);
+        thread.start();
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (true) {
+            try {
+                socket = SocketChannel.open(new InetSocketAddress(HOST, port));
+                break;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) throw e;
+                Thread.sleep(20);
+            }
+        }
+        socket.socket().setTcpNoDelay(true);
+
+        String name = "bench";
+        write(PacketHelper.CONNECT(name, codec).toBuffer());
+        if (receive().getType() != PacketType.ACK) { throw new IOException("Server did not accept the connection"); }
+        write(PacketHelper.ACK(name).toBuffer(codec));
+        decoder.setCodec(codec);
+        // the frame is cached by the packet, so every request sends the same bytes
+        request = PacketHelper.MATH(name, "sqrt(16) * 2 + round(2.5) ^ 2", 1).toBuffer(codec);
+    }
+
+    @TearDown
+    public void tearDown() {
+        Server.tryClose(socket);
+        stopServer.run();
+    }
+
+    @Benchmark
+    public Packet roundTrip() throws IOException {
+        write(request.duplicate());
+        // the ACK comes first
+        Packet p;
+        do {
+            p = receive();
+        } while (p.getType() != PacketType.RESULT);
+        return p;
+    }
+
+    private void write(ByteBuffer frame) throws IOException {
+        while (frame.hasRemaining()) {
+            socket.write(frame);
+        }
+    }
+
+    private Packet receive() throws IOException {
+        while (true) {
+            Packet p = decoder.next();
+            if (p != null) return p;
+            readBuffer.clear();
+            if (socket.read(readBuffer) < 0) { throw new IOException("Server closed the connection"); }
+            decoder.feed(readBuffer.flip());
+        }
+    }
+}
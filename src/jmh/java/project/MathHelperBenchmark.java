@@ -0,0 +1,106 @@
+package project;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures each stage of MathHelper on expressions of increasing size, both as a flat chain of operators and nested in parenthesis and function calls.
+ * Expressions are all constant and compile folds them down to a single number, so evaluation is measured on the unsimplified program,
+ * once through the interpreter and once through the code MathJit generates for it.
+ * The generated code loads its constants from its own constant pool, so HotSpot can fold much of it in turn, keep that in mind comparing the two.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MathHelperBenchmark {
+    // number of operands
+    @Param({ "10", "100", "400" })
+    public int size;
+
+    @Param({ "flat", "nested" })
+    public String shape;
+
+    private String expression;
+    private MathHelper.Expression unsimplified;
+    private DoubleSupplier jitted;
+
+    @Setup
+    public void setup() {
+        expression = shape.equals("flat") ? flat(size) : nested(size);
+        unsimplified = MathHelper.compileUnsimplified(expression);
+        jitted = MathJit.compile(unsimplified);
+        if (jitted == null) { throw new IllegalStateException("MathJit could not generate code for " + shape + " " + size); }
+    }
+
+    /**
+     * @return something like 1.5 + 2 * 3 - sqrt(4) / 5 + ..., with no parenthesis
+     */
+    static String flat(int operands) {
+        StringBuilder sb = new StringBuilder("1.5");
+        for (int i = 1; i < operands; i++) {
+            sb.append(" ").append("+-*/".charAt(i % 4)).append(" ");
+            if (i % 5 == 0) {
+                sb.append("sqrt(").append(i).append(")");
+            } else {
+                sb.append(i).append(".25");
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return something like (1.5 + abs(2 * (3 - ...))), nested one level deeper per operand
+     */
+    static String nested(int operands) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 1; i < operands; i++) {
+            sb.append(i).append(" ").append("+-*".charAt(i % 3)).append(i % 4 == 0 ? " abs(" : " (");
+        }
+        sb.append("1.5");
+        for (int i = 1; i < operands; i++) {
+            sb.append(")");
+        }
+        return sb.toString();
+    }
+
+    @Benchmark
+    public int tokenize() {
+        return MathHelper.countTokens(expression);
+    }
+
+    @Benchmark
+    public MathHelper.Expression compile() {
+        return MathHelper.compile(expression);
+    }
+
+    // compile and evaluate in one go, what the server does on a cache miss
+    @Benchmark
+    public double parse() {
+        return MathHelper.parse(expression);
+    }
+
+    @Benchmark
+    public double interpret() {
+        return unsimplified.interpret();
+    }
+
+    @Benchmark
+    public double evaluateJit() {
+        return jitted.getAsDouble();
+    }
+}
@@ -0,0 +1,73 @@
+package project;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import project.PacketHelper.Packet;
+
+/**
+ * Encodes and decodes whole frames with each codec, the way a connection does: encoding builds a new packet and its frame,
+ * since a packet caches its frame once encoded, and decoding goes through a FrameDecoder.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketCodecBenchmark {
+    private static final String SENDER = "Server/127.0.0.1:8080";
+
+    @Param({ "JSON", "BINARY" })
+    public PacketHelper.Codec codec;
+
+    @Param({ "MATH", "RESULT_BATCH" })
+    public String packet;
+
+    private List<PacketHelper.BatchResult> results;
+    private ByteBuffer frame;
+    private PacketHelper.FrameDecoder decoder;
+
+    @Setup
+    public void setup() {
+        results = new ArrayList<PacketHelper.BatchResult>();
+        for (int i = 0; i < 50; i++) {
+            results.add(PacketHelper.BatchResult.ofValue(i, i * 1.5));
+        }
+        frame = newPacket().toBuffer(codec);
+        decoder = new PacketHelper.FrameDecoder();
+        decoder.setCodec(codec);
+    }
+
+    private Packet newPacket() {
+        if (packet.equals("MATH")) {
+            return PacketHelper.MATH("Client[bench]/127.0.0.1:8080", "sqrt(16) * 2 + round(2.5) ^ 2", 42);
+        }
+        return PacketHelper.RESULT_BATCH(SENDER, results, 42);
+    }
+
+    @Benchmark
+    public ByteBuffer encode() {
+        return newPacket().toBuffer(codec);
+    }
+
+    @Benchmark
+    public Packet decode() {
+        decoder.feed(frame.duplicate());
+        return decoder.next();
+    }
+}
@@ -0,0 +1,83 @@
+package project;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import project.PacketHelper.Packet;
+
+/**
+ * Compares the streaming JSON codec in PacketJson with the org.json path it replaced, for both decoding and encoding.
+ * Run with ./gradlew jmh, or add -prof gc to the JMH arguments to see the allocation per packet.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketJsonBenchmark {
+    @Param({ "HEARTBEAT", "MATH", "RESULT_BATCH" })
+    public String packet;
+
+    private Packet p;
+    private byte[] json;
+
+    @Setup
+    public void setup() {
+        switch (packet) {
+        case "HEARTBEAT":
+            p = PacketHelper.HEARTBEAT("Server/127.0.0.1:8080");
+            break;
+        case "MATH":
+            p = PacketHelper.MATH("Client[bench]/127.0.0.1:8080", "sqrt(16) * 2 + round(2.5) ^ 2", 42);
+            break;
+        default:
+            List<PacketHelper.BatchResult> results = new ArrayList<PacketHelper.BatchResult>();
+            for (int i = 0; i < 50; i++) {
+                results.add(PacketHelper.BatchResult.ofValue(i, i * 1.5));
+            }
+            p = PacketHelper.RESULT_BATCH("Server/127.0.0.1:8080", results, 42);
+        }
+        ByteBuffer frame = p.toBuffer();
+        json = new byte[frame.remaining() - PacketHelper.FRAME_HEADER_SIZE];
+        frame.position(PacketHelper.FRAME_HEADER_SIZE).get(json);
+    }
+
+    @Benchmark
+    public Packet decodeOrgJson() {
+        return new Packet(new String(json, StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    public Packet decodeStreaming() {
+        return PacketJson.decode(json, 0, json.length);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeOrgJson() {
+        byte[] bytes = p.jsonify().toString().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(PacketHelper.FRAME_HEADER_SIZE + bytes.length);
+        buffer.putInt(bytes.length).put(bytes).flip();
+        return buffer;
+    }
+
+    @Benchmark
+    public ByteBuffer encodeStreaming() {
+        return PacketJson.encode(p);
+    }
+}
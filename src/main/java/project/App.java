@@ -1,20 +1,42 @@
 package project;
 
 import java.io.IOException;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.function.Supplier;
 
 public class App {
+    // messages the log buffer holds before logging blocks or drops, see AsyncLogger
+    public static final int LOG_CAPACITY = 16 * 1024;
+
+    private static volatile AsyncLogger logger = AsyncLogger.console(LOG_CAPACITY, LogLevel.INFO, AsyncLogger.Overflow.BLOCK);
+
+    static {
+        // write out whatever is still queued when the app exits, including through System.exit
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> logger.flush()));
+    }
 
     public static void main(String[] args) {
         Map<String, Object> arguments = parseArgs(args);
+        configureLogger(arguments);
         if (arguments.containsKey("server")) {
             if (arguments.containsKey("port") && arguments.containsKey("host")) {
+                Server.Options options;
+                try {
+                    options = serverOptions(arguments);
+                } catch (IllegalArgumentException e) {
+                    log(e.getMessage(), LogLevel.ERROR);
+                    helpMsg();
+                    return;
+                }
                 try {
-                    Server server = new Server((String)arguments.get("host"), (int)arguments.get("port"));
-                    server.start();
+                    if ("vthreads".equals(arguments.get("mode"))) {
+                        VirtualThreadServer server = new VirtualThreadServer((String)arguments.get("host"), (int)arguments.get("port"), options);
+                        server.start();
+                    } else {
+                        Server server = new Server((String)arguments.get("host"), (int)arguments.get("port"), options);
+                        server.start();
+                    }
                 } catch (IOException e) {
                     log("Exception starting server", LogLevel.ERROR);
                     e.printStackTrace();
@@ -26,7 +48,9 @@ public class App {
         } else if (arguments.containsKey("client")) {
             if (arguments.containsKey("port") && arguments.containsKey("host") && arguments.containsKey("name")) {
                 try {
-                    Client client = new Client((String)arguments.get("host"), (int)arguments.get("port"), (String)arguments.get("name"));
+                    int window = arguments.containsKey("window") ? (int)arguments.get("window") : Client.DEFAULT_WINDOW;
+                    PacketHelper.Codec codec = arguments.containsKey("codec") ? (PacketHelper.Codec)arguments.get("codec") : PacketHelper.Codec.JSON;
+                    Client client = new Client((String)arguments.get("host"), (int)arguments.get("port"), (String)arguments.get("name"), window, codec);
                     client.start();
                 } catch (IOException e) {
                     log("Exception starting client", LogLevel.ERROR);
@@ -43,6 +67,69 @@ public class App {
     }
 
 
+    /**
+     * Replaces the default logger if any of the log arguments were given.
+     *
+     * @param arguments the parsed arguments
+     */
+    public static void configureLogger(Map<String, Object> arguments) {
+        LogLevel level = arguments.containsKey("loglevel") ? (LogLevel)arguments.get("loglevel") : LogLevel.INFO;
+        AsyncLogger.Overflow overflow = arguments.containsKey("logoverflow") ? (AsyncLogger.Overflow)arguments.get("logoverflow") : AsyncLogger.Overflow.BLOCK;
+        if (arguments.containsKey("logfile")) {
+            try {
+                setLogger(AsyncLogger.file((String)arguments.get("logfile"), LOG_CAPACITY, level, overflow));
+            } catch (IOException e) {
+                log("Could not open log file '" + arguments.get("logfile") + "', logging to the console", LogLevel.ERROR);
+                setLogger(AsyncLogger.console(LOG_CAPACITY, level, overflow));
+            }
+        } else if (arguments.containsKey("loglevel") || arguments.containsKey("logoverflow")) {
+            setLogger(AsyncLogger.console(LOG_CAPACITY, level, overflow));
+        }
+    }
+
+    /**
+     * Builds the server options from the parsed arguments, using the defaults for anything not given.
+     *
+     * @param arguments the parsed arguments
+     * @return the server options
+     */
+    public static Server.Options serverOptions(Map<String, Object> arguments) {
+        Server.Options options = new Server.Options();
+        if (arguments.containsKey("cache")) options.cacheCapacity = (int)arguments.get("cache");
+        if (arguments.containsKey("cachemem")) options.cacheMaxBytes = (int)arguments.get("cachemem") * 1024L * 1024L;
+        if (arguments.containsKey("cacheresults")) options.cacheResults = true;
+        if (arguments.containsKey("jit")) options.jitThreshold = (int)arguments.get("jit");
+        if (arguments.containsKey("nojit")) options.jitEnabled = false;
+        if (arguments.containsKey("workers")) {
+            if (arguments.get("workers").equals("virtual")) {
+                options.virtualWorkers = true;
+            } else {
+                options.workers = (int)arguments.get("workers");
+            }
+        }
+        if (arguments.containsKey("workerqueue")) options.workerQueue = (int)arguments.get("workerqueue");
+        if (arguments.containsKey("reactors")) options.reactors = (int)arguments.get("reactors");
+        if (arguments.containsKey("highwater")) options.writeHighWater = kilobytes(arguments, "highwater");
+        if (arguments.containsKey("readbuffer")) options.readBufferSize = kilobytes(arguments, "readbuffer");
+        if (arguments.containsKey("readbuffers")) options.readBuffers = (int)arguments.get("readbuffers");
+        if (arguments.containsKey("heartbeat")) options.heartbeatInterval = (int)arguments.get("heartbeat");
+        if (arguments.containsKey("metrics")) options.metricsInterval = (int)arguments.get("metrics");
+        if (arguments.containsKey("metricsport")) options.metricsPort = (int)arguments.get("metricsport");
+        if (arguments.containsKey("heartbeattimeout")) options.heartbeatTimeout = (int)arguments.get("heartbeattimeout");
+        if (arguments.containsKey("saturation")) options.saturation = (WorkerPool.Saturation)arguments.get("saturation");
+        return options;
+    }
+
+    /**
+     * @return the argument, given in KB, in bytes
+     * @throws IllegalArgumentException if that many bytes don't fit in an int
+     */
+    private static int kilobytes(Map<String, Object> arguments, String name) {
+        long bytes = (int)arguments.get(name) * 1024L;
+        if (bytes > Integer.MAX_VALUE) { throw new IllegalArgumentException("Value for -" + name + " is too large, at most " + Integer.MAX_VALUE / 1024 + " KB"); }
+        return (int)bytes;
+    }
+
     public static Map<String, Object> parseArgs(String[] args) {
         Map<String, Object> out = new HashMap<String, Object>();
         if (args == null || args.length == 0) {
@@ -55,10 +142,14 @@ public class App {
                 out.put("server", true);
             } else if (args[i].equals("-client")) {
                 out.put("client", true);
-            }else if (args[i].startsWith("-")) {
+            } else if (args[i].equals("-cacheresults")) {
+                out.put("cacheresults", true);
+            } else if (args[i].equals("-nojit")) {
+                out.put("nojit", true);
+            } else if (args[i].startsWith("-")) {
                 if (args.length >= i+1) {
                     if (args[i].equals("-port")) {
-                        if (args[i+1].matches("[0-9]+")){
+                        if (args[i+1].matches("[0-9]{1,9}")){
                             out.put("port", Integer.parseInt(args[i+1]));
                         } else {
                             log("Invalid port number", LogLevel.ERROR);
@@ -73,6 +164,72 @@ public class App {
                         }
                     } else if (args[i].equals("-name")) {
                         out.put("name", args[i+1]);
+                    } else if (args[i].equals("-workers")) {
+                        if (args[i+1].equals("virtual")) {
+                            out.put("workers", "virtual");
+                        } else if (args[i+1].matches("[0-9]{1,9}")) {
+                            out.put("workers", Integer.parseInt(args[i+1]));
+                        } else {
+                            log("Invalid value for -workers", LogLevel.ERROR);
+                            helpMsg();
+                        }
+                    } else if (args[i].equals("-mode")) {
+                        if (args[i+1].equals("reactor") || args[i+1].equals("vthreads")) {
+                            out.put("mode", args[i+1]);
+                        } else {
+                            log("Invalid value for -mode", LogLevel.ERROR);
+                            helpMsg();
+                        }
+                    } else if (args[i].equals("-codec")) {
+                        if (args[i+1].equals("json")) {
+                            out.put("codec", PacketHelper.Codec.JSON);
+                        } else if (args[i+1].equals("binary")) {
+                            out.put("codec", PacketHelper.Codec.BINARY);
+                        } else {
+                            log("Invalid value for -codec", LogLevel.ERROR);
+                            helpMsg();
+                        }
+                    } else if (args[i].equals("-workerqueue")) {
+                        if (args[i+1].matches("[0-9]{1,9}")) {
+                            out.put("workerqueue", Integer.parseInt(args[i+1]));
+                        } else {
+                            log("Invalid value for -workerqueue", LogLevel.ERROR);
+                            helpMsg();
+                        }
+                    } else if (args[i].equals("-saturation")) {
+                        if (args[i+1].equals("reject")) {
+                            out.put("saturation", WorkerPool.Saturation.REJECT);
+                        } else if (args[i+1].equals("callerruns")) {
+                            out.put("saturation", WorkerPool.Saturation.CALLER_RUNS);
+                        } else {
+                            log("Invalid value for -saturation", LogLevel.ERROR);
+                            helpMsg();
+                        }
+                    } else if (args[i].equals("-loglevel")) {
+                        try {
+                            out.put("loglevel", LogLevel.valueOf(args[i+1].toUpperCase()));
+                        } catch (IllegalArgumentException e) {
+                            log("Invalid value for -loglevel", LogLevel.ERROR);
+                            helpMsg();
+                        }
+                    } else if (args[i].equals("-logoverflow")) {
+                        if (args[i+1].equals("block")) {
+                            out.put("logoverflow", AsyncLogger.Overflow.BLOCK);
+                        } else if (args[i+1].equals("drop")) {
+                            out.put("logoverflow", AsyncLogger.Overflow.DROP);
+                        } else {
+                            log("Invalid value for -logoverflow", LogLevel.ERROR);
+                            helpMsg();
+                        }
+                    } else if (args[i].equals("-logfile")) {
+                        out.put("logfile", args[i+1]);
+                    } else if (args[i].equals("-cache") || args[i].equals("-cachemem") || args[i].equals("-jit") || args[i].equals("-window") || args[i].equals("-reactors") || args[i].equals("-highwater") || args[i].equals("-readbuffer") || args[i].equals("-readbuffers") || args[i].equals("-heartbeat") || args[i].equals("-heartbeattimeout") || args[i].equals("-metrics") || args[i].equals("-metricsport")) {
+                        if (args[i+1].matches("[1-9][0-9]{0,8}")){
+                            out.put(args[i].substring(1), Integer.parseInt(args[i+1]));
+                        } else {
+                            log("Invalid value for " + args[i], LogLevel.ERROR);
+                            helpMsg();
+                        }
                     }
                 } else {
                     log("Missing value for arg"+ args[i], LogLevel.ERROR);
@@ -84,16 +241,41 @@ public class App {
     }
 
     public static void helpMsg() {
-        log("Usage: java -jar NetworkingProject.jar -server -port <port> -host <host>", LogLevel.INFO);
-        log("Usage: java -jar NetworkingProject.jar -client -port <port> -host <host> -name <name>", LogLevel.INFO);
+        log("Usage: java -jar NetworkingProject.jar -server -port <port> -host <host> [-mode reactor|vthreads] [-cache <entries>] [-cachemem <MB>] [-cacheresults] [-jit <evaluations> | -nojit] [-workers <threads> | -workers virtual] [-workerqueue <clients>] [-saturation reject|callerruns] [-reactors <threads>] [-highwater <KB>] [-readbuffer <KB>] [-readbuffers <buffers>] [-heartbeat <ms>] [-heartbeattimeout <ms>] [-metrics <seconds>] [-metricsport <port>] [-loglevel debug|info|warn|error] [-logfile <path>] [-logoverflow block|drop]", LogLevel.INFO);
+        log("Usage: java -jar NetworkingProject.jar -client -port <port> -host <host> -name <name> [-window <requests>] [-codec json|binary] [-loglevel debug|info|warn|error] [-logfile <path>] [-logoverflow block|drop]", LogLevel.INFO);
         System.exit(-1);
     }
 
+    /**
+     * Logs a message. It is written out by the logger's own thread, so this doesn't wait on the console.
+     */
     public static void log(String msg, LogLevel level) {
-        System.out.println("["+LocalDateTime.now().format(DateTimeFormatter.ofPattern("HH:mm:ss.SSS"))+"] ["+level+"] "+msg);
+        logger.log(msg, level);
     }
 
+    /**
+     * Logs a message that is only built if its level is enabled, for messages logged on every request.
+     */
+    public static void log(Supplier<String> msg, LogLevel level) {
+        AsyncLogger current = logger;
+        if (current.isEnabled(level)) current.log(msg.get(), level);
+    }
+
+    public static boolean isLoggable(LogLevel level) { return logger.isEnabled(level); }
+
+    /**
+     * Replaces the logger, writing out everything the old one still had queued first.
+     */
+    public static void setLogger(AsyncLogger logger) {
+        AsyncLogger old = App.logger;
+        App.logger = logger;
+        old.close();
+    }
+
+    public static AsyncLogger getLogger() { return logger; }
+
     public enum LogLevel {
+        DEBUG("DEBUG"),
         INFO("INFO"),
         WARN("WARN"), 
         ERROR("ERROR");
@@ -128,6 +310,7 @@ public class App {
  *  DONE - (respond to heartbeat)
  * 
  *  Protocol:
- *  - json packets
- *  - types: connect, disconnect, ack, heartbeat, math, result
+ *  - json packets, or binary ones if the client asks for them in connect and the server's ack agrees
+ *  - types: connect, disconnect, ack, heartbeat, math, result, math_batch, result_batch
+ *  - math requests carry an optional id, echoed back in their ack and result
  */
\ No newline at end of file
@@ -0,0 +1,300 @@
+package project;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import project.App.LogLevel;
+
+/**
+ * A logger that hands messages to a background thread instead of writing them on the caller's thread.
+ * Messages go into a bounded lock-free ring buffer, any number of threads can log at once and only claiming a slot is contended.
+ * The writer thread takes whatever has piled up, formats it and writes it as one batch with a single flush,
+ * so a burst of messages costs one write to the console or file instead of one each.
+ * When the buffer is full the caller either waits for room or the message is dropped, depending on the overflow policy.
+ * Dropped messages are counted and reported in the log once there is room again.
+ * The writer thread starts in the constructor, so the class is final to keep it from seeing a half built subclass.
+ */
+public final class AsyncLogger {
+    /**
+     * What logging does when the ring buffer is full.
+     */
+    public enum Overflow {
+        // wait until the writer has made room, nothing is lost but a slow console slows the caller down
+        BLOCK,
+        // drop the message and count it
+        DROP
+    }
+
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss");
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Writer out;
+    private final boolean closeOut;
+    private final Overflow overflow;
+    private volatile LogLevel level;
+
+    // the ring buffer. a slot's sequence says whose turn it is: equal to the position a producer may fill it at,
+    // position + 1 once it's filled and the writer may take it, and position + capacity once the writer is done with it
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final String[] messages;
+    private final LogLevel[] levels;
+    private final long[] times;
+    // next position to fill, claimed by producers
+    private final AtomicLong tail = new AtomicLong();
+    // next position to take, only touched by the writer
+    private long head;
+    // everything before this position has been written out and flushed
+    private volatile long written;
+
+    private final LongAdder dropped = new LongAdder();
+    private long droppedReported;
+    private final Thread writer;
+    // set by the writer before it parks, so producers only unpark it when it's actually waiting
+    private volatile boolean waiting;
+    private volatile boolean running = true;
+
+    // the writer's cached formatting of the current second, so a line only needs its millis appended
+    private final ZoneId zone = ZoneId.systemDefault();
+    private long cachedSecond = Long.MIN_VALUE;
+    private String cachedTime;
+    private final StringBuilder line = new StringBuilder(256);
+
+    /**
+     * Creates a logger and starts its writer thread.
+     *
+     * @param out where to write, as UTF-8
+     * @param closeOut whether closing the logger closes out too, false for System.out
+     * @param capacity the number of messages the ring buffer holds, a power of two
+     * @param level the lowest level that is logged
+     * @param overflow what to do when the buffer is full
+     */
+    public AsyncLogger(OutputStream out, boolean closeOut, int capacity, LogLevel level, Overflow overflow) {
+        if (capacity < 2 || Integer.bitCount(capacity) != 1) { throw new IllegalArgumentException("Log buffer capacity must be a power of two"); }
+        this.out = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_SIZE);
+        this.closeOut = closeOut;
+        this.overflow = overflow;
+        this.level = level;
+        this.mask = capacity - 1;
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+        this.messages = new String[capacity];
+        this.levels = new LogLevel[capacity];
+        this.times = new long[capacity];
+        this.writer = new Thread(this::run, "log-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * @return a logger writing to System.out
+     */
+    public static AsyncLogger console(int capacity, LogLevel level, Overflow overflow) {
+        return new AsyncLogger(System.out, false, capacity, level, overflow);
+    }
+
+    /**
+     * @param path the file to append to, created if it doesn't exist
+     * @return a logger writing to the given file
+     */
+    public static AsyncLogger file(String path, int capacity, LogLevel level, Overflow overflow) throws IOException {
+        return new AsyncLogger(new FileOutputStream(path, true), true, capacity, level, overflow);
+    }
+
+    /**
+     * @return whether messages of the given level are logged, callers can skip building a message that isn't
+     */
+    public boolean isEnabled(LogLevel level) {
+        return level.ordinal() >= this.level.ordinal();
+    }
+
+    public void setLevel(LogLevel level) { this.level = level; }
+
+    public LogLevel getLevel() { return level; }
+
+    /**
+     * Queues a message for the writer thread, if its level is enabled.
+     *
+     * @param msg the message
+     * @param level the level of the message
+     */
+    public void log(String msg, LogLevel level) {
+        if (!isEnabled(level)) return;
+        // the writer is gone, waiting for room would wait forever
+        if (!running) {
+            dropped.increment();
+            return;
+        }
+        long time = System.currentTimeMillis();
+        long pos = claim();
+        if (pos < 0) {
+            dropped.increment();
+            return;
+        }
+        int i = (int) (pos & mask);
+        messages[i] = msg;
+        levels[i] = level;
+        times[i] = time;
+        // publishes the fields above to the writer
+        sequences.set(i, pos + 1);
+        if (waiting) LockSupport.unpark(writer);
+    }
+
+    /**
+     * Claims the next slot in the ring buffer, waiting for room if the overflow policy says so.
+     *
+     * @return the position claimed, or -1 if the buffer is full and the message should be dropped
+     */
+    private long claim() {
+        long pos = tail.get();
+        int spins = 0;
+        while (true) {
+            long diff = sequences.get((int) (pos & mask)) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) return pos;
+                pos = tail.get();
+            } else if (diff < 0) {
+                // the writer hasn't freed this slot yet, so the buffer is full
+                if (overflow == Overflow.DROP || !running) return -1;
+                LockSupport.unpark(writer);
+                if (++spins < 100) {
+                    Thread.onSpinWait();
+                } else {
+                    LockSupport.parkNanos(50_000);
+                }
+                pos = tail.get();
+            } else {
+                // another producer took this position
+                pos = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Waits until every message logged before this call has been written out.
+     */
+    public void flush() {
+        long target = tail.get();
+        while (written < target && writer.isAlive()) {
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(100_000);
+        }
+    }
+
+    /**
+     * Writes out everything still queued, stops the writer thread and closes the output if the logger owns it.
+     */
+    public void close() {
+        flush();
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The writer thread. Writes every message available as one batch, then parks until more arrive.
+     */
+    private void run() {
+        try {
+            while (true) {
+                if (writeBatch()) continue;
+                if (!running) break;
+                waiting = true;
+                // checked again after setting waiting, a producer that published before it was set didn't unpark us
+                if (!isReady()) {
+                    LockSupport.parkNanos(this, 100_000_000);
+                }
+                waiting = false;
+            }
+        } catch (IOException e) {
+            // nowhere left to log this
+            System.err.println("Log writer failed, dropping log messages from now on");
+            e.printStackTrace();
+        } finally {
+            // producers drop instead of waiting for room that will never come
+            running = false;
+            if (closeOut) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private boolean isReady() {
+        return sequences.get((int) (head & mask)) == head + 1;
+    }
+
+    /**
+     * Takes every published message, formats and writes them, and flushes the output once.
+     *
+     * @return false if there was nothing to write
+     */
+    private boolean writeBatch() throws IOException {
+        if (!isReady()) return false;
+        int capacity = mask + 1;
+        while (isReady()) {
+            int i = (int) (head & mask);
+            writeLine(times[i], levels[i], messages[i]);
+            messages[i] = null;
+            sequences.set(i, head + capacity);
+            head++;
+        }
+        long drops = dropped.sum();
+        if (drops != droppedReported) {
+            writeLine(System.currentTimeMillis(), LogLevel.WARN, "Dropped " + (drops - droppedReported) + " log messages, the log buffer was full");
+            droppedReported = drops;
+        }
+        out.flush();
+        written = head;
+        return true;
+    }
+
+    /**
+     * Formats one line as [HH:mm:ss.SSS] [LEVEL] message. The time of day is only formatted once per second.
+     */
+    private void writeLine(long time, LogLevel level, String msg) throws IOException {
+        long second = Math.floorDiv(time, 1000);
+        if (second != cachedSecond) {
+            cachedSecond = second;
+            cachedTime = TIME_FORMAT.format(Instant.ofEpochSecond(second).atZone(zone));
+        }
+        int millis = Math.floorMod(time, 1000);
+        line.setLength(0);
+        line.append('[').append(cachedTime).append('.');
+        if (millis < 100) line.append('0');
+        if (millis < 10) line.append('0');
+        line.append(millis).append("] [").append(level).append("] ").append(msg).append('\n');
+        out.append(line);
+    }
+
+    /**
+     * @return the number of messages dropped because the buffer was full
+     */
+    public long getDropped() { return dropped.sum(); }
+
+    /**
+     * @return the number of messages written out so far
+     */
+    public long getWritten() { return written; }
+}
@@ -0,0 +1,112 @@
+package project;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of equally sized direct buffers for reading from sockets, so reads neither allocate nor copy through a temporary heap buffer.
+ * Buffers are cut from slabs, large direct allocations of several buffers each, which are allocated as needed up to a maximum.
+ * Once every pooled buffer is in use, further acquires get a one-off heap buffer that is simply dropped when released,
+ * and count as misses. Safe to use from any thread.
+ */
+public class BufferPool {
+    private final int bufferSize;
+    private final int buffersPerSlab;
+    private final int maxSlabs;
+    private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final AtomicInteger slabs = new AtomicInteger();
+    private final AtomicInteger inUse = new AtomicInteger();
+    private final AtomicLong acquires = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param bufferSize the size of each buffer in bytes
+     * @param buffersPerSlab how many buffers are cut from one slab
+     * @param maxSlabs the max number of slabs, so at most buffersPerSlab * maxSlabs buffers are pooled
+     */
+    public BufferPool(int bufferSize, int buffersPerSlab, int maxSlabs) {
+        if (bufferSize < 1 || buffersPerSlab < 1 || maxSlabs < 1) { throw new IllegalArgumentException("Buffer pool sizes must be positive"); }
+        if ((long) bufferSize * buffersPerSlab > Integer.MAX_VALUE) { throw new IllegalArgumentException("Slab of " + buffersPerSlab + " buffers of " + bufferSize + " bytes is too large"); }
+        this.bufferSize = bufferSize;
+        this.buffersPerSlab = buffersPerSlab;
+        this.maxSlabs = maxSlabs;
+    }
+
+    /**
+     * Takes a cleared buffer from the pool, allocating a new slab if the pool is empty and may still grow.
+     *
+     * @return a buffer of bufferSize bytes, to be given back with release
+     */
+    public ByteBuffer acquire() {
+        acquires.incrementAndGet();
+        ByteBuffer buffer = free.poll();
+        while (buffer == null) {
+            if (!allocateSlab()) {
+                misses.incrementAndGet();
+                return ByteBuffer.allocate(bufferSize);
+            }
+            buffer = free.poll();
+        }
+        inUse.incrementAndGet();
+        return buffer;
+    }
+
+    /**
+     * Gives a buffer back to the pool. The caller must not use it afterwards.
+     *
+     * @param buffer a buffer from acquire
+     */
+    public void release(ByteBuffer buffer) {
+        // one-off buffers handed out on a miss are on the heap and just left to the GC
+        if (!buffer.isDirect()) return;
+        buffer.clear();
+        inUse.decrementAndGet();
+        free.add(buffer);
+    }
+
+    /**
+     * Cuts a new slab into buffers and adds them to the free list.
+     *
+     * @return false if the pool already has its max number of slabs
+     */
+    private boolean allocateSlab() {
+        int count;
+        do {
+            count = slabs.get();
+            if (count >= maxSlabs) return false;
+        } while (!slabs.compareAndSet(count, count + 1));
+        ByteBuffer slab = ByteBuffer.allocateDirect(bufferSize * buffersPerSlab);
+        for (int i = 0; i < buffersPerSlab; i++) {
+            free.add(slab.slice(i * bufferSize, bufferSize));
+        }
+        return true;
+    }
+
+    public int getBufferSize() { return bufferSize; }
+
+    /**
+     * @return the number of buffers allocated so far, free or in use
+     */
+    public int getCapacity() { return slabs.get() * buffersPerSlab; }
+
+    /**
+     * @return the number of pooled buffers currently acquired
+     */
+    public int getInUse() { return inUse.get(); }
+
+    public int getSlabs() { return slabs.get(); }
+
+    public long getAcquires() { return acquires.get(); }
+
+    /**
+     * @return the number of acquires that found the pool exhausted and got a one-off buffer
+     */
+    public long getMisses() { return misses.get(); }
+
+    @Override
+    public String toString() {
+        return "BufferPool[" + inUse.get() + "/" + getCapacity() + " in use, " + bufferSize + " bytes each, misses=" + misses.get() + "]";
+    }
+}
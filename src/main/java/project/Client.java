@@ -6,6 +6,11 @@ import java.io.InputStreamReader;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.json.JSONException;
 
@@ -16,22 +21,49 @@ import project.PacketHelper.PacketType;
 /**
  * Represents a client that connects to a server and sends math expressions to be evaluated.
  * The client listens for packets from the server and handles them accordingly.
+ * Requests are pipelined: up to WINDOW requests can be waiting for a result at once, each tracked by the id it was sent with.
  */
 class Client {
+    // default number of requests that can be in flight at once
+    public static final int DEFAULT_WINDOW = 16;
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
     public final String NAME;
     public final String HOST;
     public final int PORT;
+    public final int WINDOW;
+    // codec asked for in the CONNECT
+    public final PacketHelper.Codec CODEC;
     public final SocketChannel socket;
     public boolean isConnected;
-    public volatile boolean expectResult;
+    // requests sent but not answered yet, by id. sorted so the oldest request comes first
+    private final ConcurrentSkipListMap<Long, String> pending;
+    private final AtomicLong nextId;
+    // codec packets are sent with, switched once the server agrees to CODEC
+    private volatile PacketHelper.Codec codec;
+    // only used by the thread reading from the socket
+    private final PacketHelper.FrameDecoder decoder;
     public volatile boolean shouldExit;
 
     public Client(String host, int port, String name) throws IOException {
+        this(host, port, name, DEFAULT_WINDOW);
+    }
+
+    public Client(String host, int port, String name, int window) throws IOException {
+        this(host, port, name, window, PacketHelper.Codec.JSON);
+    }
+
+    public Client(String host, int port, String name, int window, PacketHelper.Codec codec) throws IOException {
+        if (window < 1) { throw new IllegalArgumentException("Window must be at least 1"); }
         this.HOST = host;
         this.PORT = port;
         this.NAME = name;
+        this.WINDOW = window;
+        this.CODEC = codec;
+        this.codec = PacketHelper.Codec.JSON;
+        this.decoder = new PacketHelper.FrameDecoder();
         this.isConnected = false;
-        this.expectResult = false;
+        this.pending = new ConcurrentSkipListMap<Long, String>();
+        this.nextId = new AtomicLong();
         this.shouldExit = false;
         this.socket = SocketChannel.open();
     }
@@ -46,7 +78,7 @@ class Client {
         // Establish socket and send CONNECT
         try {
             socket.connect(new InetSocketAddress(HOST, PORT));
-            socket.write(PacketHelper.CONNECT(this).toBuffer());
+            send(PacketHelper.CONNECT(this, CODEC));
         } catch (IOException e) {
             App.log("Exception connecting to " + HOST + ":" + PORT, LogLevel.ERROR);
             return;
@@ -54,11 +86,17 @@ class Client {
         App.log("Sent CONNECT to " + HOST + ":" + PORT, LogLevel.INFO);
 
         // Start listening for packets
+        // one connection only needs one buffer, reused for every read
+        ByteBuffer buffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
         while (!shouldExit) {
-            ByteBuffer buffer = ByteBuffer.allocate(2048);
+            buffer.clear();
+            int read;
             try {
-                socket.read(buffer);
+                read = socket.read(buffer);
             } catch (IOException e) {
+                read = -1;
+            }
+            if (read < 0) {
                 if (shouldExit) {
                     return;
                 }
@@ -66,40 +104,60 @@ class Client {
                 System.exit(-1);
                 return;
             }
-            
-            // ignore empty packets
-            if (new String(buffer.array()).trim().isEmpty()) {
-                continue;
-            }
 
-            // parse packet
-            Packet p;
-            try {
-                p = PacketHelper.parse(buffer);
-            } catch (JSONException e) {
-                App.log("Invalid packet received from server. Terminating...", LogLevel.ERROR);
-                System.exit(-1);
-                return;
+            // parse and handle every complete packet received so far
+            buffer.flip();
+            decoder.feed(buffer);
+            while (true) {
+                Packet p;
+                try {
+                    p = decoder.next();
+                } catch (JSONException e) {
+                    App.log("Invalid packet received from server. Terminating...", LogLevel.ERROR);
+                    System.exit(-1);
+                    return;
+                }
+                if (p == null) break;
+                handlePacket(p);
             }
+        }
+    }
 
-            // handle packet
-            switch (p.getType()) {
-            case HEARTBEAT:
-                handleHeartbeat(p);
-                break;
-            case RESULT:
-                handleResult(p);
-                break;
-            case ACK:
-                handleAck(p);
-                break;
-            case DISCONNECT:
-                handleDisconnect(p);
-                break;
-            default:
-                handleInvalidPacket(p.getType(), p.getSender());
-                break;
-            }
+    /**
+     * Encodes a packet with the connection's codec and writes it to the server.
+     *
+     * @param p the packet to send
+     * @throws IOException if writing to the socket failed
+     */
+    private void send(Packet p) throws IOException {
+        socket.write(p.toBuffer(codec));
+    }
+
+    /**
+     * Handles a single packet received from the server according to its type.
+     *
+     * @param p the received packet
+     */
+    private void handlePacket(Packet p) {
+        switch (p.getType()) {
+        case HEARTBEAT:
+            handleHeartbeat(p);
+            break;
+        case RESULT:
+            handleResult(p);
+            break;
+        case RESULT_BATCH:
+            handleResultBatch(p);
+            break;
+        case ACK:
+            handleAck(p);
+            break;
+        case DISCONNECT:
+            handleDisconnect(p);
+            break;
+        default:
+            handleInvalidPacket(p.getType(), p.getSender());
+            break;
         }
     }
 
@@ -111,7 +169,7 @@ class Client {
     private void handleInvalidPacket(PacketType type, String sender) {
         App.log("Invalid packet " + type + " received from '" + sender + "'! Terminating...", LogLevel.ERROR);
         try {
-            socket.write(PacketHelper.DISCONNECT(this, "Invalid packet " + type + " received from server! Disconnecting...").toBuffer());
+            send(PacketHelper.DISCONNECT(this, "Invalid packet " + type + " received from server! Disconnecting..."));
         } catch (IOException e) {
             App.log("Exception sending DISCONNECT to socket. Terminating anyway", LogLevel.ERROR);
         }
@@ -126,7 +184,7 @@ class Client {
     private void handleHeartbeat(Packet p) {
         // App.log("Received HEARTBEAT from '" + p.getSender() + "'", LogLevel.INFO);
         try {
-            socket.write(PacketHelper.HEARTBEAT(this).toBuffer());
+            send(PacketHelper.HEARTBEAT(this));
         } catch (IOException e) {
             App.log("Exception sending HEARTBEAT to '" + p.getSender() + "'! Terminating...", LogLevel.ERROR);
             System.exit(-1);
@@ -136,7 +194,7 @@ class Client {
     /**
      * Handles an ACK packet received from the server.
      * If the client is not connected, sends an ACK for CONNECT and starts the keyboard input thread.
-     * If the client is connected and expecting a result, logs the ACK for MATH.
+     * If the client is connected and the ACK is for a pending request, logs the ACK for MATH.
      * Otherwise, logs that an ACK was received but not needed.
      *
      * @param p The ACK packet received from the server.
@@ -144,8 +202,18 @@ class Client {
     private void handleAck(Packet p) {
         if (!isConnected) {
             App.log("Received ACK for CONNECT from '" + p.getSender() + "'", LogLevel.INFO);
+            // the server may not know the codec asked for, in which case the connection stays on JSON
+            if (CODEC != PacketHelper.Codec.JSON) {
+                if (PacketHelper.codecOf(p) == CODEC) {
+                    codec = CODEC;
+                    decoder.setCodec(CODEC);
+                    App.log("Using codec " + CODEC, LogLevel.INFO);
+                } else {
+                    App.log("Server does not support codec " + CODEC + ", using JSON", LogLevel.WARN);
+                }
+            }
             try {
-                socket.write(PacketHelper.ACK(this).toBuffer());
+                send(PacketHelper.ACK(this));
             } catch (IOException e) {
                 App.log("Exception sending ACK for CONNECT to '" + p.getSender() + "'! Terminating...", LogLevel.ERROR);
                 System.exit(-1);
@@ -154,8 +222,8 @@ class Client {
             // Start keyboard input thread after successful connection
             new KeyboardInputThread(this).start();
             isConnected = true;
-        } else if (isConnected && expectResult) {
-            App.log("Received ACK for MATH from '" + p.getSender() + "'", LogLevel.INFO);
+        } else if (isConnected && pending.containsKey(p.getId())) {
+            App.log(() -> "Received ACK for MATH #" + p.getId() + " from '" + p.getSender() + "'", LogLevel.DEBUG);
         } else {
             App.log("Received ACK from '" + p.getSender() + "' but no ACK needed", LogLevel.WARN);
         }
@@ -180,14 +248,18 @@ class Client {
     
     /**
      * Handles the received packet of type RESULT.
-     * Logs the received message and sets the expectResult flag to false.
+     * Logs the received message and removes the request it answers from the pending requests.
      * If an IOException occurs while sending the ACK packet, logs an error and terminates the program.
      * 
      * @param p the received packet of type RESULT
      */
     private void handleResult(Packet p) {
-        App.log("Received RESULT from '" + p.getSender() + "': " + p.getContent(), LogLevel.INFO);
-        expectResult = false;
+        Map.Entry<Long, String> request = completeRequest(p);
+        if (request == null) {
+            App.log("Received RESULT from '" + p.getSender() + "' for unknown request #" + p.getId() + ": " + p.getContent(), LogLevel.WARN);
+            return;
+        }
+        App.log("Received RESULT #" + request.getKey() + " from '" + p.getSender() + "' for '" + request.getValue() + "': " + p.getContent(), LogLevel.INFO);
         // try {
         //     socket.write(PacketHelper.ACK(this).toBuffer());
         // } catch (IOException e) {
@@ -197,6 +269,80 @@ class Client {
         // }
     }
 
+    /**
+     * Handles the received packet of type RESULT_BATCH.
+     * Logs the result or error of every expression in the batch and removes the request it answers from the pending requests.
+     * If the batch can't be parsed, logs an error and terminates the program.
+     *
+     * @param p the received packet of type RESULT_BATCH
+     */
+    private void handleResultBatch(Packet p) {
+        List<PacketHelper.BatchResult> results;
+        try {
+            results = PacketHelper.parseBatchResults(p.getContent());
+        } catch (JSONException e) {
+            App.log("Invalid RESULT_BATCH received from '" + p.getSender() + "'. Terminating...", LogLevel.ERROR);
+            System.exit(-1);
+            return;
+        }
+        Map.Entry<Long, String> request = completeRequest(p);
+        if (request == null) {
+            App.log("Received RESULT_BATCH from '" + p.getSender() + "' for unknown request #" + p.getId(), LogLevel.WARN);
+            return;
+        }
+        App.log("Received RESULT_BATCH #" + request.getKey() + " from '" + p.getSender() + "' with " + results.size() + " result(s)", LogLevel.INFO);
+        for (PacketHelper.BatchResult result : results) {
+            App.log("  [" + result.getId() + "] " + (result.isError() ? "error: " + result.getError() : result.getResult()), LogLevel.INFO);
+        }
+    }
+
+    /**
+     * Removes the request answered by the given RESULT or RESULT_BATCH from the pending requests.
+     * A response without an id answers the oldest pending request, since the server answers requests in order.
+     *
+     * @param p the response
+     * @return the id and text of the answered request, or null if no pending request matches
+     */
+    private Map.Entry<Long, String> completeRequest(Packet p) {
+        if (!p.hasId()) {
+            return pending.pollFirstEntry();
+        }
+        String request = pending.remove(p.getId());
+        return request != null ? Map.entry(p.getId(), request) : null;
+    }
+
+    /**
+     * Sends a MATH request, or a MATH_BATCH if the input holds several expressions separated by ';'.
+     * The request is tracked as pending until its result arrives.
+     *
+     * @param input the expression(s) to send
+     * @return false if the window is full and nothing was sent
+     * @throws IOException if the request can't be written to the socket
+     */
+    boolean sendRequest(String input) throws IOException {
+        if (pending.size() >= WINDOW) return false;
+        long id = nextId.getAndIncrement();
+        // track the request before sending it, the result can arrive before write returns
+        pending.put(id, input);
+        try {
+            if (input.indexOf(';') >= 0) {
+                List<String> expressions = Arrays.stream(input.split(";")).filter(e -> !e.isEmpty()).toList();
+                send(PacketHelper.MATH_BATCH(this, expressions, id));
+            } else {
+                send(PacketHelper.MATH(this, input, id));
+            }
+        } catch (IOException e) {
+            pending.remove(id);
+            throw e;
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of requests waiting for a result
+     */
+    public int getPendingCount() { return pending.size(); }
+
     @Override
     public String toString() {
         return "Client[" + NAME + "]/" + HOST + ":" + PORT;
@@ -216,7 +362,7 @@ class Client {
 
         @Override
         public void run() {
-            App.log("Type a math expression to send to the server, or type 'exit' to disconnect", LogLevel.INFO);
+            App.log("Type a math expression to send to the server, several separated by ';' to send them as one batch, or type 'exit' to disconnect", LogLevel.INFO);
             BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
             while (true) {
                 String input = "";
@@ -243,7 +389,7 @@ class Client {
                         client.shouldExit = true;
                         App.log("Disconnecting...", LogLevel.INFO);
                         try {
-                            client.socket.write(PacketHelper.DISCONNECT(client, "Client requested disconnect").toBuffer());
+                            client.send(PacketHelper.DISCONNECT(client, "Client requested disconnect"));
                             client.socket.close();
                         } catch (IOException e) {
                             App.log("Exception sending DISCONNECT to server", LogLevel.ERROR);
@@ -251,11 +397,12 @@ class Client {
                         System.exit(0);
                         return;
 
-                        // else send math packet to server
-                    } else if (client.isConnected && !client.expectResult) {
+                        // else send math packet to server, or a batch if there are several expressions
+                    } else if (client.isConnected) {
                         try {
-                            client.socket.write(PacketHelper.MATH(client, input).toBuffer());
-                            client.expectResult = true;
+                            if (!client.sendRequest(input)) {
+                                App.log("Already waiting for " + client.WINDOW + " results. Please wait...", LogLevel.WARN);
+                            }
                         } catch (IOException e) {
                             App.log("Exception sending MATH to server. Assuming Disconnect...", LogLevel.ERROR);
                             try {
@@ -266,8 +413,6 @@ class Client {
                             System.exit(-1);
                             return;
                         }
-                    } else if (client.isConnected && client.expectResult) {
-                        App.log("Already waiting for result. Please wait...", LogLevel.WARN);
                     }
                 }
             }
@@ -0,0 +1,127 @@
+package project;
+
+import java.util.concurrent.ExecutionException;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import project.MathHelper.Expression;
+
+/**
+ * A bounded LRU cache of compiled expressions, keyed by the normalized expression string.
+ * Lets the server skip tokenizing and building the tree for expressions it has already seen.
+ * The cache is bounded both by number of entries and by the estimated memory the entries use.
+ * Invalid expressions are never cached.
+ */
+public class ExpressionCache {
+    // rough per-object overheads used to estimate how much memory an entry holds on to
+    private static final int ENTRY_OVERHEAD_BYTES = 64;
+    private static final int NODE_BYTES = 32;
+
+    private final Cache<String, Entry> cache;
+    private final boolean cacheResults;
+    private final int capacity;
+    private final long maxBytes;
+
+    /**
+     * @param capacity the maximum number of expressions to keep
+     * @param maxBytes the maximum estimated memory the cached expressions may use
+     * @param cacheResults if true, also cache the final result of constant expressions so they are not evaluated again
+     */
+    public ExpressionCache(int capacity, long maxBytes, boolean cacheResults) {
+        if (capacity <= 0 || maxBytes <= 0) { throw new IllegalArgumentException("Cache capacity and memory bound must be positive"); }
+        this.capacity = capacity;
+        this.maxBytes = maxBytes;
+        this.cacheResults = cacheResults;
+        // guava can't bound by size and weight at the same time, so every entry weighs at least maxBytes / capacity.
+        // total weight <= maxBytes then also means there are at most capacity entries
+        final long minWeight = Math.max(1, maxBytes / capacity);
+        // guava splits the bound across its segments, so small caches use a single segment to keep eviction exact
+        this.cache = CacheBuilder.newBuilder()
+                .concurrencyLevel(Math.min(4, Math.max(1, capacity / 64)))
+                .maximumWeight(maxBytes)
+                .weigher((String key, Entry entry) -> (int) Math.min(Integer.MAX_VALUE, Math.max(minWeight, entry.estimateBytes(key))))
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * Evaluates the given expression, compiling it only if it isn't already cached.
+     *
+     * @param expression the expression to evaluate
+     * @return the result of the expression
+     * @throws IllegalArgumentException if the expression is invalid
+     */
+    public double evaluate(String expression) throws IllegalArgumentException {
+        Entry entry = get(expression);
+        return entry.hasResult ? entry.result : entry.expression.evaluate();
+    }
+
+    /**
+     * Returns the compiled form of the given expression, compiling and caching it if needed.
+     *
+     * @param expression the expression to compile
+     * @return the compiled expression
+     * @throws IllegalArgumentException if the expression is invalid
+     */
+    public Expression compile(String expression) throws IllegalArgumentException {
+        return get(expression).expression;
+    }
+
+    private Entry get(String expression) throws IllegalArgumentException {
+        String key = MathHelper.normalize(expression);
+        try {
+            return cache.get(key, () -> new Entry(MathHelper.compile(key), cacheResults));
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            if (e.getCause() instanceof IllegalArgumentException) { throw (IllegalArgumentException) e.getCause(); }
+            throw new IllegalStateException("Exception compiling expression", e.getCause());
+        }
+    }
+
+    public long getHits() { return cache.stats().hitCount(); }
+
+    public long getMisses() { return cache.stats().missCount(); }
+
+    public long getEvictions() { return cache.stats().evictionCount(); }
+
+    public long size() { return cache.size(); }
+
+    public int getCapacity() { return capacity; }
+
+    public long getMaxBytes() { return maxBytes; }
+
+    /**
+     * Removes all cached expressions. The counters are kept.
+     */
+    public void clear() {
+        cache.invalidateAll();
+    }
+
+    @Override
+    public String toString() {
+        CacheStats stats = cache.stats();
+        return "ExpressionCache[size=" + cache.size() + "/" + capacity + ", hits=" + stats.hitCount() + ", misses=" + stats.missCount()
+                + ", evictions=" + stats.evictionCount() + "]";
+    }
+
+    /**
+     * A cached compiled expression, plus its result if it is constant and result caching is on.
+     */
+    private static final class Entry {
+        private final Expression expression;
+        private final boolean hasResult;
+        private final double result;
+
+        Entry(Expression expression, boolean cacheResult) {
+            this.expression = expression;
+            this.hasResult = cacheResult && expression.isConstant();
+            this.result = hasResult ? expression.evaluate() : 0;
+        }
+
+        long estimateBytes(String key) {
+            return ENTRY_OVERHEAD_BYTES + 2L * key.length() + (long) NODE_BYTES * expression.getNodeCount();
+        }
+    }
+}
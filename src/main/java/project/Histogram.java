@@ -0,0 +1,157 @@
+package project;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A log-linear histogram of durations in nanoseconds, in the style of HdrHistogram.
+ * Every power of two is split into SUB_BUCKETS / 2 equal buckets, so a recorded value is off by at most 1 / (SUB_BUCKETS / 2), about 6%,
+ * whatever its size. Values below SUB_BUCKETS get a bucket each.
+ * Recording is a few atomic increments on preallocated counters, it never locks or allocates, so it can be called from any thread on the hot path.
+ * Snapshots copy the counters without stopping recording, so one taken while values are being recorded may be off by those values.
+ */
+public class Histogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int HALF = SUB_BUCKETS / 2;
+    // enough buckets for any positive long
+    private static final int BUCKETS = (64 - SUB_BITS + 1) * HALF;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a duration. Negative values, from a clock going backwards, count as 0.
+     *
+     * @param nanos the duration in nanoseconds
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(bucketOf(value));
+        total.increment();
+        sum.add(value);
+        // only contended while the max is still climbing
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * Records the time since the given System.nanoTime().
+     *
+     * @param start when the recorded stage started
+     */
+    public void recordSince(long start) {
+        record(System.nanoTime() - start);
+    }
+
+    /**
+     * @return the bucket a value falls in
+     */
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        // shift the value so it has SUB_BITS significant bits, those pick the bucket within its power of two
+        int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return (shift << (SUB_BITS - 1)) + (int) (value >>> shift);
+    }
+
+    /**
+     * @return the lowest value that falls in the given bucket
+     */
+    static long lowestValueOf(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        int shift = (bucket >>> (SUB_BITS - 1)) - 1;
+        return (long) (bucket - (shift << (SUB_BITS - 1))) << shift;
+    }
+
+    /**
+     * @return the highest value that falls in the given bucket
+     */
+    static long highestValueOf(int bucket) {
+        return bucket + 1 < BUCKETS ? lowestValueOf(bucket + 1) - 1 : Long.MAX_VALUE;
+    }
+
+    /**
+     * @return a copy of what has been recorded so far
+     */
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+            count += copy[i];
+        }
+        return new Snapshot(copy, count, sum.sum(), max.get());
+    }
+
+    /**
+     * @return the number of values recorded
+     */
+    public long getCount() { return total.sum(); }
+
+    /**
+     * A copy of a histogram's counters at one point, for reading percentiles.
+     */
+    public static class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        private Snapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long getCount() { return count; }
+
+        public long getMax() { return max; }
+
+        /**
+         * @return the sum of every value recorded, in nanoseconds
+         */
+        public long getSum() { return sum; }
+
+        /**
+         * @return the mean in nanoseconds, 0 if nothing was recorded
+         */
+        public double getMean() { return count == 0 ? 0 : (double) sum / count; }
+
+        /**
+         * @param percentile between 0 and 100
+         * @return the highest value of the bucket the percentile falls in, capped at the max recorded. 0 if nothing was recorded
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (count == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) return Math.min(highestValueOf(i), max);
+            }
+            return max;
+        }
+
+        /**
+         * @return the number of values in each bucket, indexed like the histogram's buckets
+         */
+        long[] getCounts() { return counts; }
+
+        @Override
+        public String toString() {
+            return "count=" + count + " mean=" + micros((long) getMean()) + " p50=" + micros(getValueAtPercentile(50)) + " p99=" + micros(getValueAtPercentile(99))
+                    + " p99.9=" + micros(getValueAtPercentile(99.9)) + " max=" + micros(max);
+        }
+
+        private static String micros(long nanos) {
+            return TimeUnit.NANOSECONDS.toMicros(nanos) + "us";
+        }
+    }
+}
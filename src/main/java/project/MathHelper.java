@@ -2,334 +2,875 @@ package project;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
-import java.util.Stack;
-import java.util.function.DoubleUnaryOperator;
+import java.util.function.DoubleSupplier;
 
 public class MathHelper {
 
-    private static final Set<Character> OPERATORS = new HashSet<>(Arrays.asList('+', '-', '*', '/', '^'));
-    private static final Map<String, DoubleUnaryOperator> FUNCTIONS = new HashMap<>();
+    // function names, indexed by function id. applyFunction must be kept in the same order.
+    // each name is also the name of the java.lang.Math method implementing it, MathJit relies on that
+    static final String[] FUNCTION_NAMES = { "floor", "ceil", "round", "abs", "sqrt", "cbrt", "log", "sin", "cos", "tan" };
+
+    // token kinds produced by the lexer
+    private static final int T_EOF = 0;
+    private static final int T_NUMBER = 1;
+    private static final int T_OPERATOR = 2;
+    private static final int T_FUNCTION = 3;
+    private static final int T_LPAREN = 4;
+    private static final int T_RPAREN = 5;
+
+    // opcodes of a compiled expression program. OP_CONST and OP_CALL are followed by an operand
+    static final int OP_CONST = 0;
+    static final int OP_ADD = 1;
+    static final int OP_SUB = 2;
+    static final int OP_MUL = 3;
+    static final int OP_DIV = 4;
+    static final int OP_POW = 5;
+    static final int OP_NEG = 6;
+    static final int OP_CALL = 7;
+
+    // unary minus binds tighter than * and / but looser than ^
+    private static final int UNARY_PRECEDENCE = 3;
+    // max nesting of parenthesis, unary minus, function calls and operators that bind tighter than the one before them,
+    // keeps the recursive parse and tree walks well clear of the stack limit. chains like 1+2+3+... don't nest and can be any length
+    static final int MAX_DEPTH = 1000;
+
+    // operand stack for evaluating programs, one per thread. only nesting makes the stack grow, so MAX_DEPTH + 1 slots are enough,
+    // every program is checked against this when it's built
+    private static final int OPERAND_STACK_SIZE = MAX_DEPTH + 1;
+    private static final ThreadLocal<double[]> OPERAND_STACK = ThreadLocal.withInitial(() -> new double[OPERAND_STACK_SIZE]);
+
+    // powers of ten that are exactly representable as doubles, for the number fast path
+    private static final double[] POW10 = new double[23];
     static {
-        FUNCTIONS.put("floor", Math::floor);
-        FUNCTIONS.put("ceil", Math::ceil);
-        FUNCTIONS.put("round", Math::round);
-        FUNCTIONS.put("abs", Math::abs);
-        FUNCTIONS.put("sqrt", Math::sqrt);
-        FUNCTIONS.put("cbrt", Math::cbrt);
-        FUNCTIONS.put("log", Math::log);
-        FUNCTIONS.put("sin", Math::sin);
-        FUNCTIONS.put("cos", Math::cos);
-        FUNCTIONS.put("tan", Math::tan);
+        POW10[0] = 1;
+        for (int i = 1; i < POW10.length; i++) {
+            POW10[i] = POW10[i - 1] * 10;
+        }
     }
 
+    /**
+     * Parses and evaluates the given expression in one go.
+     * Equivalent to {@code compile(expression).evaluate()}.
+     *
+     * @param expression the expression to evaluate
+     * @return the result of the expression
+     * @throws IllegalArgumentException if the expression is invalid
+     */
     public static double parse(String expression) throws IllegalArgumentException {
-        // tokenize expression and validate it
-        List<String> tokens = tokenize(expression.replaceAll("\\s", "").toLowerCase());
-
-        // stacks for handling nested expressions
-        Stack<Stack<Double>> expNumStack = new Stack<Stack<Double>>();
-        Stack<Stack<String>> expOpStack = new Stack<Stack<String>>();
-
-        // push initial stacks for outermost expression
-        expNumStack.push(new Stack<Double>());
-        expOpStack.push(new Stack<String>());
-
-        // expect number stack for functions across nested expressions
-        Stack<Boolean> expectNumberStack = new Stack<Boolean>();
-
-        // push tokens onto stacks
-        for (int i = 0; i < tokens.size() || expNumStack.peek().size() > 1 || !expOpStack.peek().isEmpty(); i++) {
-            // make sure we have a token to work with
-            if (i < tokens.size()) {
-                String t = tokens.get(i);
-                // handle nested expressions first
-                if (t.equals("(")) {
-                    // push new stacks for nested expression
-                    expNumStack.push(new Stack<Double>());
-                    expOpStack.push(new Stack<String>());
-                    expectNumberStack.push(false);
-                    continue;
-                } else if (t.equals(")")) {
-                    // pop stacks for nested expression
-                    if (expNumStack.isEmpty() || expOpStack.isEmpty()) { throw new IllegalArgumentException("Unmatched closing parenthesis in nested expression"); }
-                    Stack<Double> numStack = expNumStack.pop();
-                    Stack<String> opStack = expOpStack.pop();
-                    if (!opStack.isEmpty() || numStack.size() > 1) { throw new IllegalArgumentException("Invalid nested expression encountered"); }
-                    expectNumberStack.pop();
-                    // set the current token to instead be the result of the nested expression
-                    t = numStack.pop().toString();
-                }
+        return compile(expression).evaluate();
+    }
+
+    /**
+     * Lexes, parses and validates the given expression, builds its expression tree and simplifies it.
+     * Constant subexpressions are folded, identities like x*1, x+0 and x^1 are removed and nested negations collapse,
+     * see {@link Expression#getOriginalNodeCount()} and {@link Expression#getNodeCount()} for how much that saved.
+     * The returned Expression can be evaluated any number of times from any thread,
+     * so callers that see the same expression often should keep it around instead of calling parse again.
+     *
+     * @param expression the expression to compile
+     * @return the compiled expression
+     * @throws IllegalArgumentException if the expression is invalid
+     */
+    public static Expression compile(String expression) throws IllegalArgumentException {
+        Node parsed = new Parser(expression).parse();
+        return new Expression(expression, parsed.simplify(true), parsed.count());
+    }
 
-                // then check if a function is expecting a number next
-                if (expectNumberStack.isEmpty() ? false : expectNumberStack.peek()) {
-                    if (isNumber(t)) {
-                        expNumStack.peek().push(Double.parseDouble(t));
-                    } else {
-                        throw new IllegalArgumentException("Invalid token, expected number for function: " + t);
-                    }
+    /**
+     * Compiles an expression without simplifying it, so its program runs every operator and function as written.
+     * Every expression MathHelper accepts is constant and compile folds it down to a single number,
+     * this is for tests and benchmarks of the interpreter and MathJit.
+     *
+     * @param expression the expression to compile
+     * @return the compiled expression, exactly as parsed
+     * @throws IllegalArgumentException if the expression is invalid
+     */
+    static Expression compileUnsimplified(String expression) throws IllegalArgumentException {
+        Node parsed = new Parser(expression).parse();
+        return new Expression(expression, parsed, parsed.count());
+    }
 
-                    // then check if token is a number, operator, or function
-                } else if (isNumber(t)) {
-                    expNumStack.peek().push(Double.parseDouble(t));
+    /**
+     * Compiles an expression removing identities and nested negations, but without folding constants.
+     * With folding, both sides of an operator are always numbers by the time the identities are checked,
+     * so this is the only way to see the identities at work.
+     *
+     * @param expression the expression to compile
+     * @return the compiled expression
+     * @throws IllegalArgumentException if the expression is invalid
+     */
+    static Expression compileWithoutFolding(String expression) throws IllegalArgumentException {
+        Node parsed = new Parser(expression).parse();
+        return new Expression(expression, parsed.simplify(false), parsed.count());
+    }
 
-                } else if (isOperator(t)) {
-                    expOpStack.peek().push(t);
+    /**
+     * Runs only the lexer over an expression, for measuring tokenizing on its own.
+     *
+     * @param expression the expression to tokenize
+     * @return the number of tokens in the expression
+     * @throws IllegalArgumentException if the expression contains an invalid character, number or function
+     */
+    static int countTokens(String expression) throws IllegalArgumentException {
+        Lexer lexer = new Lexer(expression);
+        int count = 0;
+        while (lexer.next() != T_EOF) {
+            count++;
+        }
+        return count;
+    }
 
-                } else if (isFunction(t)) {
-                    expOpStack.peek().push(t);
+    /**
+     * Returns the canonical form of an expression: lower case, with whitespace removed
+     * except for a single space where removing it would join two numbers or names together.
+     * Two expressions with the same normalized form compile to the same tree.
+     *
+     * @param expression the expression to normalize
+     * @return the normalized expression
+     */
+    static String normalize(String expression) {
+        // most expressions are already normalized, so only copy once something needs changing
+        int i = 0;
+        while (i < expression.length()) {
+            char c = expression.charAt(i);
+            if (Character.isWhitespace(c) || Character.toLowerCase(c) != c) break;
+            i++;
+        }
+        if (i == expression.length()) return expression;
 
-                    // if not, throw an exception
-                } else {
-                    throw new IllegalArgumentException("Invalid token: " + t);
-                }
+        StringBuilder sb = new StringBuilder(expression.length());
+        sb.append(expression, 0, i);
+        boolean skipped = false;
+        for (; i < expression.length(); i++) {
+            char c = expression.charAt(i);
+            if (Character.isWhitespace(c)) {
+                skipped = true;
+                continue;
             }
-            // check if we can apply an operator
-            boolean reeval = false;
-            do {
-                if (expNumStack.peek().size() > 1 && !expOpStack.peek().isEmpty() && !isFunction(expOpStack.peek().peek())) {
-                    double b = expNumStack.peek().pop();
-                    double a = expNumStack.peek().pop();
-                    String op = expOpStack.peek().pop();
-                    expNumStack.peek().push(applyOperator(a, b, op));
-                    reeval = false;
-
-                    // then check if a function is expecting a number next
-                } else if (!expOpStack.peek().isEmpty() && isFunction(expOpStack.peek().peek()) && (expectNumberStack.isEmpty() ? true : !expectNumberStack.peek())) {
-                    expectNumberStack.push(true);
-
-                    // then check if we can apply a function
-                } else if (!expOpStack.peek().isEmpty() && isFunction(expOpStack.peek().peek()) && !expectNumberStack.isEmpty() && expectNumberStack.peek()) {
-                    double arg = expNumStack.peek().pop();
-                    String name = expOpStack.peek().pop();
-                    expNumStack.peek().push(applyFunction(arg, name));
-                    // re-evaluate the expression in to use the function
-                    reeval = expectNumberStack.pop();
-                } else {
-                    reeval = false;
-                }
+            if (skipped && sb.length() > 0 && isWordChar(sb.charAt(sb.length() - 1)) && isWordChar(c)) sb.append(' ');
+            skipped = false;
+            sb.append(Character.toLowerCase(c));
+        }
+        return sb.toString();
+    }
+
+    private static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '.';
+    }
 
-            } while (reeval);
+    private static double applyOperator(char op, double a, double b) throws IllegalArgumentException {
+        switch (op) {
+        case '+':
+            return a + b;
+        case '-':
+            return a - b;
+        case '*':
+            return a * b;
+        case '/':
+            return a / b;
+        case '^':
+            return Math.pow(a, b);
+        default:
+            throw new IllegalArgumentException("Unknown operator: " + op);
         }
-        if (expNumStack.size() != 1 || expNumStack.peek().size() != 1) { throw new IllegalArgumentException("Invalid expression: " + expression); }
-        return expNumStack.peek().pop();
     }
 
-    private static List<String> tokenize(String expression) throws IllegalArgumentException {
-        List<String> tokens = new ArrayList<String>();
-        Stack<Character> pStack = new Stack<Character>();
-        String curToken = "";
-        for (int i = 0; i < expression.length(); i++) {
-            char c = expression.charAt(i);
-            if (c == '(') {
-                if (curToken.length() > 0) {
-                    tokens.add(new String(curToken));
-                    curToken = "";
-                }
-                tokens.add(String.valueOf(c));
-                pStack.push(c);
-                continue;
-            } else if (c == ')') {
-                if (curToken.length() > 0) {
-                    tokens.add(new String(curToken));
-                    curToken = "";
-                }
-                if (tokens.size()-1 >= 0 && tokens.get(tokens.size() - 1).equals("(")) { throw new IllegalArgumentException("Empty parenthesis block"); }
-                if (pStack.isEmpty()) { throw new IllegalArgumentException("Unmatched closing parenthesis"); }
-                tokens.add(String.valueOf(c));
-                pStack.pop();
-                continue;
-            } else if (Character.isDigit(c) || c == '.' || (c == '-' && curToken.length() == 0)) {
-                curToken += c;
-                continue;
-            } else if (OPERATORS.contains(c)) {
-                if (curToken.length() > 0) {
-                    tokens.add(new String(curToken));
-                    curToken = "";
-                }
-                tokens.add(String.valueOf(c));
-                continue;
-            } else if (Character.isLetter(c)) {
-                if (curToken.length() > 0) {
-                    tokens.add(new String(curToken));
-                    curToken = "";
-                }
-                curToken += c;
-                while (i + 1 < expression.length() && (Character.isLetter(expression.charAt(i + 1)) || expression.charAt(i + 1) == '(' || expression.charAt(i + 1) == ')')) {
-                    if (expression.charAt(i + 1) == '(') {
-                        if (FUNCTIONS.containsKey(curToken)) {
-                            tokens.add(curToken);
-                            curToken = "";
-                            pStack.push(expression.charAt(++i));
-                            tokens.add(String.valueOf(expression.charAt(i)));
-                            break;
-                        } else {
-                            throw new IllegalArgumentException("Unknown function: " + curToken);
-                        }
-                    } else if (Character.isLetter(expression.charAt(i + 1))) {
-                        curToken += expression.charAt(++i);
-                    } else {
-                        throw new IllegalArgumentException("Invalid character while parsing function: " + c);
-                    }
+    private static int opcode(char op) throws IllegalArgumentException {
+        switch (op) {
+        case '+':
+            return OP_ADD;
+        case '-':
+            return OP_SUB;
+        case '*':
+            return OP_MUL;
+        case '/':
+            return OP_DIV;
+        case '^':
+            return OP_POW;
+        default:
+            throw new IllegalArgumentException("Unknown operator: " + op);
+        }
+    }
+
+    private static double applyFunction(int id, double arg) {
+        switch (id) {
+        case 0:
+            return Math.floor(arg);
+        case 1:
+            return Math.ceil(arg);
+        case 2:
+            return Math.round(arg);
+        case 3:
+            return Math.abs(arg);
+        case 4:
+            return Math.sqrt(arg);
+        case 5:
+            return Math.cbrt(arg);
+        case 6:
+            return Math.log(arg);
+        case 7:
+            return Math.sin(arg);
+        case 8:
+            return Math.cos(arg);
+        case 9:
+            return Math.tan(arg);
+        default:
+            throw new IllegalArgumentException("Unknown function id: " + id);
+        }
+    }
+
+    /**
+     * A compiled expression. Holds the expression tree built by {@link MathHelper#compile(String)},
+     * flattened into a postfix program of int opcodes and a table of constants.
+     * Evaluation runs the program on a primitive per thread operand stack, so it doesn't allocate.
+     * Once an expression has been evaluated often enough, MathJit turns it into a generated class and evaluation goes through that instead.
+     * Instances are safe to share between threads. The only mutable state is the evaluation counter and the generated code,
+     * and racing on either just means an expression gets generated a little later or more than once.
+     */
+    public static final class Expression {
+        private final String source;
+        private final Node root;
+        private final int[] code;
+        private final double[] constants;
+        private final int originalNodeCount;
+        private final int nodeCount;
+        // set if the tree folded down to a single number, which is all there is to evaluate then
+        private final boolean folded;
+        private final double value;
+        private int evaluations;
+        private boolean jitAttempted;
+        private volatile DoubleSupplier jitted;
+
+        private Expression(String source, Node root, int originalNodeCount) {
+            this.source = source;
+            this.root = root;
+            this.originalNodeCount = originalNodeCount;
+            this.nodeCount = root.count();
+            this.folded = root instanceof Num;
+            this.value = folded ? ((Num) root).value : 0;
+            Emitter emitter = new Emitter();
+            root.emit(emitter);
+            if (emitter.maxHeight() > OPERAND_STACK_SIZE) { throw new IllegalArgumentException("Expression is nested too deeply"); }
+            this.code = emitter.code();
+            this.constants = emitter.constants();
+        }
+
+        /**
+         * Evaluates the expression. An expression that folded down to a number just returns it,
+         * generating code for it would cost a class and gain nothing.
+         *
+         * @return the result of the expression
+         */
+        public double evaluate() {
+            if (folded) return value;
+            DoubleSupplier jitted = this.jitted;
+            if (jitted != null) {
+                return jitted.getAsDouble();
+            }
+            if (!jitAttempted && ++evaluations >= MathJit.getThreshold() && MathJit.isEnabled()) {
+                jitAttempted = true;
+                this.jitted = MathJit.compile(this);
+            }
+            return interpret();
+        }
+
+        /**
+         * Evaluates the expression by running its program, even if generated code exists for it.
+         *
+         * @return the result of the expression
+         */
+        public double interpret() {
+            final int[] code = this.code;
+            final double[] constants = this.constants;
+            final double[] stack = OPERAND_STACK.get();
+            int sp = 0;
+            for (int pc = 0; pc < code.length; pc++) {
+                switch (code[pc]) {
+                case OP_CONST:
+                    stack[sp++] = constants[code[++pc]];
+                    break;
+                case OP_ADD:
+                    sp--;
+                    stack[sp - 1] += stack[sp];
+                    break;
+                case OP_SUB:
+                    sp--;
+                    stack[sp - 1] -= stack[sp];
+                    break;
+                case OP_MUL:
+                    sp--;
+                    stack[sp - 1] *= stack[sp];
+                    break;
+                case OP_DIV:
+                    sp--;
+                    stack[sp - 1] /= stack[sp];
+                    break;
+                case OP_POW:
+                    sp--;
+                    stack[sp - 1] = Math.pow(stack[sp - 1], stack[sp]);
+                    break;
+                case OP_NEG:
+                    stack[sp - 1] = -stack[sp - 1];
+                    break;
+                case OP_CALL:
+                    stack[sp - 1] = applyFunction(code[++pc], stack[sp - 1]);
+                    break;
+                default:
+                    throw new IllegalStateException("Invalid opcode: " + code[pc]);
                 }
-                continue;
-            } else if (!Character.isWhitespace(c)) { throw new IllegalArgumentException("Invalid character: " + c); }
-        }
-        if (curToken.length() > 0) {
-            tokens.add(curToken);
-        }
-
-        //validation pass...
-        for (int i = 0; i < tokens.size(); i++) {
-            String cur = tokens.get(i);
-            if (isOperator(cur)) {
-                if (cur.equals("-")) {
-                    if (i+1 < tokens.size()) {
-                        if (!(isNumber(tokens.get(i+1)) || tokens.get(i+1).equals("("))) {
-                            throw new IllegalArgumentException("Negative sign must be followed by a number or parenthesis block");
-                        }
-                    } else {
-                        throw new IllegalArgumentException("Negative sign must be followed by a number or parenthesis block");
-                    }
-                } else {
-                    if (i-1 >= 0 && i+1 < tokens.size()) {
-                        if (!(isNumber(tokens.get(i-1)) || tokens.get(i-1).equals(")")) || !(isNumber(tokens.get(i+1)) || tokens.get(i+1).equals("("))) {
-                            throw new IllegalArgumentException("Operator must be preceded and followed by a number or parenthesis block");
-                        }
-                    } else {
-                        throw new IllegalArgumentException("Operator must be preceded and followed by a number or parenthesis block");
-                    }
+            }
+            return stack[0];
+        }
+
+        public String getSource() { return source; }
+
+        /**
+         * @return true if evaluation is going through generated code
+         */
+        public boolean isJitCompiled() { return jitted != null; }
+
+        // the program, for MathJit. callers must not modify the arrays
+        int[] code() { return code; }
+
+        double[] constants() { return constants; }
+
+        /**
+         * @return the number of nodes in the simplified expression tree, which is what gets evaluated
+         */
+        public int getNodeCount() { return nodeCount; }
+
+        /**
+         * @return the number of nodes in the expression tree as parsed, before simplifying it
+         */
+        public int getOriginalNodeCount() { return originalNodeCount; }
+
+        /**
+         * An expression is constant if it always evaluates to the same value.
+         * Every operator and function MathHelper supports is pure, so this only depends on the leaves.
+         *
+         * @return true if the result of the expression can be reused
+         */
+        public boolean isConstant() { return root.isConstant(); }
+
+        @Override
+        public String toString() {
+            return root.toString();
+        }
+    }
+
+    /**
+     * Single pass lexer over the raw expression string.
+     * Each call to next() classifies one token straight from the chars and leaves its value in the public fields,
+     * so lexing does not allocate anything per token. Whitespace is skipped and function names are matched ignoring case.
+     */
+    private static final class Lexer {
+        private final String src;
+        private int pos;
+
+        // value of the current token, only the field matching its kind is meaningful
+        int kind;
+        double number;
+        char op;
+        int function;
+
+        Lexer(String src) {
+            this.src = src;
+            this.pos = 0;
+        }
+
+        /**
+         * Advances to the next token.
+         *
+         * @return the kind of the token, T_EOF once the input is used up
+         * @throws IllegalArgumentException if the input contains an invalid character, number or function
+         */
+        int next() throws IllegalArgumentException {
+            while (pos < src.length() && Character.isWhitespace(src.charAt(pos))) {
+                pos++;
+            }
+            if (pos >= src.length()) {
+                return setKind(T_EOF);
+            }
+            char c = src.charAt(pos);
+            switch (c) {
+            case '(':
+                pos++;
+                return setKind(T_LPAREN);
+            case ')':
+                pos++;
+                return setKind(T_RPAREN);
+            case '+':
+            case '-':
+            case '*':
+            case '/':
+            case '^':
+                pos++;
+                op = c;
+                return setKind(T_OPERATOR);
+            default:
+                if (isDigit(c)) {
+                    return lexNumber();
+                } else if (Character.isLetter(c)) {
+                    return lexFunction();
                 }
-            } else if (isFunction(curToken)) {
-                if (i+1 < tokens.size()) {
-                    if (!tokens.get(i+1).equals("(")) {
-                        throw new IllegalArgumentException("Function must be followed by a parenthesis block");
-                    }   
-                } else {
-                    throw new IllegalArgumentException("Function must be followed by a parenthesis block");
+                throw new IllegalArgumentException("Invalid character: " + c);
+            }
+        }
+
+        // number := digit+ ('.' digit+)?
+        private int lexNumber() throws IllegalArgumentException {
+            int start = pos;
+            long mantissa = 0;
+            int digits = 0;
+            int fractionDigits = 0;
+            while (pos < src.length() && isDigit(src.charAt(pos))) {
+                mantissa = mantissa * 10 + (src.charAt(pos++) - '0');
+                digits++;
+            }
+            if (pos < src.length() && src.charAt(pos) == '.') {
+                pos++;
+                while (pos < src.length() && isDigit(src.charAt(pos))) {
+                    mantissa = mantissa * 10 + (src.charAt(pos++) - '0');
+                    digits++;
+                    fractionDigits++;
                 }
+                if (fractionDigits == 0) { throw new IllegalArgumentException("Invalid number: " + src.substring(start, pos)); }
+            }
+            if (pos < src.length() && (src.charAt(pos) == '.' || Character.isLetter(src.charAt(pos)))) {
+                throw new IllegalArgumentException("Invalid token: " + src.substring(start, pos + 1));
             }
+            // mantissa and power of ten are both exact here, so one division rounds correctly.
+            // anything longer goes through parseDouble to keep full precision
+            if (digits <= 15) {
+                number = mantissa / POW10[fractionDigits];
+            } else {
+                number = Double.parseDouble(src.substring(start, pos));
+            }
+            return setKind(T_NUMBER);
         }
 
-        // bc im lazy and don't want to implement operator precedence (and this is more fun lol),
-        // do a final pass to inset parentheses around * and / operators and ^ lol
-        // the expression should already be valid by this point
-        for (int loop = 0; loop < 2; loop++) {
-            // need to loop over tokens twice, first doing ^, then / and * the 2nd time
-            for (int i = 0; i < tokens.size(); i++) {
-                String t = tokens.get(i);
-                // first add parentheses around ^ and its operands
-                if ((loop == 0 && t.equals("^")) || (loop == 1 && (t.equals("/") || t.equals("*")))) {
-                    // left side...
-                    // if its just a number, insert a open parenthesis before it
-                    if (i - 1 > 0 && isNumber(tokens.get(i - 1))) {
-                        tokens.add(i - 1, "(");
-                        i++;
-                        // else its another parenthesis block or a function
-                    } else if (i - 1 > 0 && tokens.get(i - 1).equals(")")) {
-                        int j = i - 1;
-                        int pCount = 1;
-                        while (j > 0 && pCount > 0) {
-                            j--;
-                            if (tokens.get(j).equals(")")) {
-                                pCount++;
-                            } else if (tokens.get(j).equals("(")) {
-                                pCount--;
-                            }
-                            if (pCount == 0) {
-                                // if its a function, insert before the function
-                                if (j - 1 > 0 && isFunction(tokens.get(j - 1))) {
-                                    tokens.add(j - 1, "(");
-                                    i++;
-                                    break;
-                                }
-                                // else insert before the parenthesis block
-                                tokens.add(j, "(");
-                                i++;
-                                break;
-                            }
-                        }
-                        // else, insert parenthesis at the beginning of the expression
-                    } else {
-                        tokens.add(0, "(");
-                        i++;
-                    }
-                    // right side...
-                    // if its just a number, insert a close parenthesis after it
-                    if (i + 1 < tokens.size() && isNumber(tokens.get(i + 1))) {
-                        if (i + 2 < tokens.size()) {
-                            tokens.add(i + 2, ")");
-                        } else {
-                            tokens.add(")");
-                        }
-                        // else its another parenthesis block
-                    } else if (i + 1 < tokens.size() && tokens.get(i + 1).equals("(")) {
-                        int j = i + 1;
-                        int pCount = 1;
-                        while (j < tokens.size() && pCount > 0) {
-                            j++;
-                            if (tokens.get(j).equals("(")) {
-                                pCount++;
-                            } else if (tokens.get(j).equals(")")) {
-                                pCount--;
-                            }
-                            if (pCount == 0) {
-                                // insert after the parenthesis block
-                                if (j + 1 < tokens.size()) {
-                                    tokens.add(j + 1, ")");
-                                } else {
-                                    tokens.add(")");
-                                }
-                                break;
-                            }
-                        }
-                        // else, insert parenthesis at the end of the expression
-                    } else {
-                        tokens.add(")");
-                    }
+        // function := letter+ followed by '('
+        private int lexFunction() throws IllegalArgumentException {
+            int start = pos;
+            while (pos < src.length() && Character.isLetter(src.charAt(pos))) {
+                pos++;
+            }
+            int length = pos - start;
+            function = -1;
+            for (int i = 0; i < FUNCTION_NAMES.length; i++) {
+                if (FUNCTION_NAMES[i].length() == length && src.regionMatches(true, start, FUNCTION_NAMES[i], 0, length)) {
+                    function = i;
+                    break;
                 }
             }
+            if (function < 0) { throw new IllegalArgumentException("Unknown function: " + src.substring(start, pos)); }
+            int next = pos;
+            while (next < src.length() && Character.isWhitespace(src.charAt(next))) {
+                next++;
+            }
+            if (next >= src.length() || src.charAt(next) != '(') { throw new IllegalArgumentException("Function must be followed by a parenthesis block"); }
+            return setKind(T_FUNCTION);
         }
 
-        return tokens;
+        private int setKind(int kind) {
+            this.kind = kind;
+            return kind;
+        }
+
+        private static boolean isDigit(char c) {
+            return c >= '0' && c <= '9';
+        }
     }
 
-    private static boolean isNumber(String token) {
-        return token.matches("-?[0-9]+(\\.[0-9]+)?");
+    /**
+     * Collects the postfix program for an expression while its tree is walked.
+     */
+    private static final class Emitter {
+        private int[] code = new int[16];
+        private int codeLength = 0;
+        private double[] constants = new double[8];
+        private int constantCount = 0;
+        // operand stack height the program reaches so far, and the most it ever needs
+        private int height = 0;
+        private int maxHeight = 0;
+
+        void op(int opcode) {
+            append(opcode);
+            // binary operators take two operands and leave one, negation and calls replace theirs
+            if (opcode != OP_NEG) height--;
+        }
+
+        void op(int opcode, int operand) {
+            append(opcode);
+            append(operand);
+        }
+
+        private void append(int value) {
+            if (codeLength == code.length) code = Arrays.copyOf(code, codeLength * 2);
+            code[codeLength++] = value;
+        }
+
+        void constant(double value) {
+            if (constantCount == constants.length) constants = Arrays.copyOf(constants, constantCount * 2);
+            constants[constantCount] = value;
+            op(OP_CONST, constantCount++);
+            maxHeight = Math.max(maxHeight, ++height);
+        }
+
+        int maxHeight() {
+            return maxHeight;
+        }
+
+        int[] code() {
+            return Arrays.copyOf(code, codeLength);
+        }
+
+        double[] constants() {
+            return Arrays.copyOf(constants, constantCount);
+        }
     }
 
-    private static boolean isOperator(String token) {
-        return token.length() == 1 && OPERATORS.contains(token.charAt(0));
+    /**
+     * Precedence climbing parser on top of the Lexer. Builds the tree in a single left to right pass.
+     * Precedence from loosest to tightest is + and -, then * and /, then unary minus, then ^.
+     * All binary operators are left associative except ^, which is right associative, so 2^3^2 is 2^(3^2) and -2^2 is -(2^2).
+     */
+    private static final class Parser {
+        private final Lexer lexer;
+        private int nesting;
+
+        Parser(String src) {
+            this.lexer = new Lexer(src);
+            this.nesting = 0;
+        }
+
+        Node parse() throws IllegalArgumentException {
+            if (lexer.next() == T_EOF) { throw new IllegalArgumentException("Empty expression"); }
+            Node root = expression(0);
+            if (lexer.kind == T_RPAREN) { throw new IllegalArgumentException("Unmatched closing parenthesis"); }
+            if (lexer.kind != T_EOF) { throw new IllegalArgumentException("Missing operator between operands"); }
+            return root;
+        }
+
+        // expression := unary (operator expression)*, only taking operators that bind at least as tight as minPrecedence
+        private Node expression(int minPrecedence) throws IllegalArgumentException {
+            if (++nesting > MAX_DEPTH) { throw new IllegalArgumentException("Expression is nested too deeply"); }
+            Node left = unary();
+            while (lexer.kind == T_OPERATOR && precedence(lexer.op) >= minPrecedence) {
+                char op = lexer.op;
+                lexer.next();
+                // right associative operators let the right side take another operator of the same precedence
+                Node right = expression(op == '^' ? precedence(op) : precedence(op) + 1);
+                left = new Binary(op, left, right);
+            }
+            nesting--;
+            return left;
+        }
+
+        // unary := '-' expression(UNARY_PRECEDENCE) | primary
+        private Node unary() throws IllegalArgumentException {
+            if (lexer.kind == T_OPERATOR && lexer.op == '-') {
+                lexer.next();
+                return new Negate(expression(UNARY_PRECEDENCE));
+            }
+            return primary();
+        }
+
+        // primary := number | '(' expression ')' | function '(' expression ')'
+        private Node primary() throws IllegalArgumentException {
+            switch (lexer.kind) {
+            case T_NUMBER:
+                double value = lexer.number;
+                lexer.next();
+                return new Num(value);
+            case T_LPAREN:
+                return parenthesized();
+            case T_FUNCTION:
+                int id = lexer.function;
+                // the lexer already checked that a parenthesis block follows
+                lexer.next();
+                return new Function(id, parenthesized());
+            case T_OPERATOR:
+                throw new IllegalArgumentException("Operator must be preceded and followed by a number or parenthesis block");
+            case T_RPAREN:
+                throw new IllegalArgumentException("Unmatched closing parenthesis");
+            default:
+                throw new IllegalArgumentException("Unexpected end of expression");
+            }
+        }
+
+        private Node parenthesized() throws IllegalArgumentException {
+            if (lexer.next() == T_RPAREN) { throw new IllegalArgumentException("Empty parenthesis block"); }
+            Node inner = expression(0);
+            if (lexer.kind != T_RPAREN) { throw new IllegalArgumentException("Unmatched opening parenthesis"); }
+            lexer.next();
+            return inner;
+        }
+
+        private static int precedence(char op) {
+            switch (op) {
+            case '+':
+            case '-':
+                return 1;
+            case '*':
+            case '/':
+                return 2;
+            case '^':
+                return 4;
+            default:
+                return -1;
+            }
+        }
     }
 
-    private static boolean isFunction(String token) {
-        return FUNCTIONS.containsKey(token);
+    // expression tree nodes, all immutable
+
+    private static abstract class Node {
+        // appends the postfix program for this subtree
+        abstract void emit(Emitter emitter);
+
+        // returns an equivalent subtree with identities removed and, if fold is set, constants folded, bottom up
+        abstract Node simplify(boolean fold);
+
+        abstract int count();
+
+        abstract boolean isConstant();
     }
 
-    private static double applyOperator(double a, double b, String op) throws IllegalArgumentException {
-        switch (op) {
-        case "+":
-            return a + b;
-        case "-":
-            return a - b;
-        case "*":
-            return a * b;
-        case "/":
-            return a / b;
-        case "^":
-            return Math.pow(a, b);
-        default:
-            throw new IllegalArgumentException("Unknown operator: " + op);
+    private static final class Num extends Node {
+        private final double value;
+
+        Num(double value) {
+            this.value = value;
+        }
+
+        @Override
+        void emit(Emitter emitter) {
+            emitter.constant(value);
+        }
+
+        @Override
+        Node simplify(boolean fold) {
+            return this;
+        }
+
+        boolean is(double value) {
+            return Double.compare(this.value, value) == 0;
+        }
+
+        @Override
+        int count() {
+            return 1;
+        }
+
+        @Override
+        boolean isConstant() {
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return Double.toString(value);
+        }
+    }
+
+    private static final class Negate extends Node {
+        private final Node operand;
+
+        Negate(Node operand) {
+            this.operand = operand;
+        }
+
+        @Override
+        void emit(Emitter emitter) {
+            operand.emit(emitter);
+            emitter.op(OP_NEG);
+        }
+
+        @Override
+        Node simplify(boolean fold) {
+            Node inner = operand.simplify(fold);
+            if (fold && inner instanceof Num) {
+                return new Num(-((Num) inner).value);
+            } else if (inner instanceof Negate) {
+                // --x is x
+                return ((Negate) inner).operand;
+            }
+            return inner == operand ? this : new Negate(inner);
+        }
+
+        @Override
+        int count() {
+            return 1 + operand.count();
+        }
+
+        @Override
+        boolean isConstant() {
+            return operand.isConstant();
+        }
+
+        @Override
+        public String toString() {
+            return "(-" + operand + ")";
+        }
+    }
+
+    /**
+     * A binary operator. Chains like 1+2+3+... parse into a tree leaning all the way to the left, as tall as the chain is long,
+     * so the walks below go down the left side in a loop and only recurse into right operands, whose depth the parser limits.
+     */
+    private static final class Binary extends Node {
+        private final char op;
+        private final Node left;
+        private final Node right;
+
+        Binary(char op, Node left, Node right) {
+            this.op = op;
+            this.left = left;
+            this.right = right;
+        }
+
+        /**
+         * @return this and the Binary nodes down its left side, top first
+         */
+        private List<Binary> leftSpine() {
+            List<Binary> spine = new ArrayList<Binary>();
+            Node node = this;
+            while (node instanceof Binary) {
+                spine.add((Binary) node);
+                node = ((Binary) node).left;
+            }
+            return spine;
+        }
+
+        @Override
+        void emit(Emitter emitter) {
+            List<Binary> spine = leftSpine();
+            spine.get(spine.size() - 1).left.emit(emitter);
+            for (int i = spine.size() - 1; i >= 0; i--) {
+                Binary b = spine.get(i);
+                b.right.emit(emitter);
+                emitter.op(opcode(b.op));
+            }
+        }
+
+        @Override
+        Node simplify(boolean fold) {
+            List<Binary> spine = leftSpine();
+            Node l = spine.get(spine.size() - 1).left.simplify(fold);
+            for (int i = spine.size() - 1; i >= 0; i--) {
+                Binary b = spine.get(i);
+                l = b.simplify(l, b.right.simplify(fold), fold);
+            }
+            return l;
+        }
+
+        /**
+         * Simplifies this node given its already simplified operands.
+         */
+        private Node simplify(Node l, Node r, boolean fold) {
+            if (fold && l instanceof Num && r instanceof Num) {
+                return new Num(applyOperator(op, ((Num) l).value, ((Num) r).value));
+            }
+            // identities. only ones that hold for every double (up to the sign of a zero result), so no x*0 because of NaN and infinity
+            boolean leftIs0 = l instanceof Num && ((Num) l).is(0);
+            boolean leftIs1 = l instanceof Num && ((Num) l).is(1);
+            boolean rightIs0 = r instanceof Num && ((Num) r).is(0);
+            boolean rightIs1 = r instanceof Num && ((Num) r).is(1);
+            switch (op) {
+            case '+':
+                if (rightIs0) return l;
+                if (leftIs0) return r;
+                break;
+            case '-':
+                if (rightIs0) return l;
+                break;
+            case '*':
+                if (rightIs1) return l;
+                if (leftIs1) return r;
+                break;
+            case '/':
+            case '^':
+                if (rightIs1) return l;
+                break;
+            }
+            return l == left && r == right ? this : new Binary(op, l, r);
+        }
+
+        @Override
+        int count() {
+            List<Binary> spine = leftSpine();
+            int count = spine.get(spine.size() - 1).left.count();
+            for (Binary b : spine) {
+                count += 1 + b.right.count();
+            }
+            return count;
+        }
+
+        @Override
+        boolean isConstant() {
+            List<Binary> spine = leftSpine();
+            if (!spine.get(spine.size() - 1).left.isConstant()) return false;
+            for (Binary b : spine) {
+                if (!b.right.isConstant()) return false;
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            List<Binary> spine = leftSpine();
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < spine.size(); i++) {
+                sb.append('(');
+            }
+            sb.append(spine.get(spine.size() - 1).left);
+            for (int i = spine.size() - 1; i >= 0; i--) {
+                Binary b = spine.get(i);
+                sb.append(b.op).append(b.right).append(')');
+            }
+            return sb.toString();
         }
     }
 
-    private static double applyFunction(double arg, String name) throws IllegalArgumentException {
-        DoubleUnaryOperator function = FUNCTIONS.get(name);
-        if (function == null) { throw new IllegalArgumentException("Unknown function: " + name); }
-        return function.applyAsDouble(arg);
+    private static final class Function extends Node {
+        private final int id;
+        private final Node arg;
+
+        Function(int id, Node arg) {
+            this.id = id;
+            this.arg = arg;
+        }
+
+        @Override
+        void emit(Emitter emitter) {
+            arg.emit(emitter);
+            emitter.op(OP_CALL, id);
+        }
+
+        @Override
+        Node simplify(boolean fold) {
+            Node a = arg.simplify(fold);
+            if (fold && a instanceof Num) {
+                return new Num(applyFunction(id, ((Num) a).value));
+            }
+            return a == arg ? this : new Function(id, a);
+        }
+
+        @Override
+        int count() {
+            return 1 + arg.count();
+        }
+
+        @Override
+        boolean isConstant() {
+            return arg.isConstant();
+        }
+
+        @Override
+        public String toString() {
+            return FUNCTION_NAMES[id] + "(" + arg + ")";
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,311 @@
+package project;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.DoubleSupplier;
+
+import project.App.LogLevel;
+import project.MathHelper.Expression;
+
+/**
+ * Turns hot compiled expressions into straight line bytecode.
+ * Each expression's program is translated into the body of getAsDouble() on a generated hidden class implementing DoubleSupplier,
+ * so the JVM can compile and inline it like any other method instead of running the interpreter loop in Expression.
+ * Expressions are promoted automatically by Expression.evaluate() once they have been evaluated getThreshold() times.
+ * Hidden classes are not tied to their loader, so the generated code is unloaded once its expression is no longer referenced.
+ */
+public class MathJit {
+    // name of the generated classes, has to be in the same package as this class to define them with our lookup
+    private static final String CLASS_NAME = "project/MathJit$Generated";
+    private static final String MATH = "java/lang/Math";
+    private static final int CLASS_VERSION = 61;
+    private static final int MAX_CODE_LENGTH = 65535;
+    private static final int MAX_POOL_SIZE = 65535;
+
+    private static final int ACC_PUBLIC = 0x0001;
+    private static final int ACC_FINAL = 0x0010;
+    private static final int ACC_SUPER = 0x0020;
+
+    // the few opcodes we need
+    private static final int ALOAD_0 = 0x2a;
+    private static final int LDC2_W = 0x14;
+    private static final int DADD = 0x63;
+    private static final int DSUB = 0x67;
+    private static final int DMUL = 0x6b;
+    private static final int DDIV = 0x6f;
+    private static final int DNEG = 0x77;
+    private static final int L2D = 0x8a;
+    private static final int DRETURN = 0xaf;
+    private static final int RETURN = 0xb1;
+    private static final int INVOKESPECIAL = 0xb7;
+    private static final int INVOKESTATIC = 0xb8;
+
+    private static volatile boolean enabled = true;
+    private static volatile int threshold = 10_000;
+    private static final AtomicLong generated = new AtomicLong();
+    private static final AtomicLong failed = new AtomicLong();
+
+    public static boolean isEnabled() { return enabled; }
+
+    /**
+     * Turns code generation on or off. With it off, every expression is evaluated by the interpreter.
+     * Expressions that already have generated code keep using it.
+     *
+     * @param enabled whether to generate code for hot expressions
+     */
+    public static void setEnabled(boolean enabled) {
+        MathJit.enabled = enabled;
+    }
+
+    public static int getThreshold() { return threshold; }
+
+    /**
+     * Sets how many times an expression has to be evaluated before code is generated for it.
+     *
+     * @param threshold the number of evaluations, at least 1
+     */
+    public static void setThreshold(int threshold) {
+        if (threshold < 1) { throw new IllegalArgumentException("JIT threshold must be at least 1"); }
+        MathJit.threshold = threshold;
+    }
+
+    /**
+     * @return the number of expressions code has been generated for
+     */
+    public static long getGeneratedCount() { return generated.get(); }
+
+    /**
+     * @return the number of expressions code generation failed for, those stay on the interpreter
+     */
+    public static long getFailedCount() { return failed.get(); }
+
+    /**
+     * Generates and loads a class evaluating the given expression.
+     *
+     * @param expression the expression to generate code for
+     * @return the generated evaluator, or null if the expression can't be generated and should stay on the interpreter
+     */
+    static DoubleSupplier compile(Expression expression) {
+        try {
+            byte[] bytes = generate(expression.code(), expression.constants());
+            if (bytes == null) {
+                failed.incrementAndGet();
+                return null;
+            }
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+            DoubleSupplier supplier = (DoubleSupplier) lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class)).invoke();
+            generated.incrementAndGet();
+            return supplier;
+        } catch (Throwable e) {
+            failed.incrementAndGet();
+            App.log("Exception generating code for expression '" + expression.getSource() + "'. Using interpreter...", LogLevel.WARN);
+            return null;
+        }
+    }
+
+    /**
+     * Builds the class file for the given program.
+     *
+     * @return the class file, or null if the program is too big for a single method
+     */
+    static byte[] generate(int[] program, double[] constants) throws IOException {
+        ConstantPool pool = new ConstantPool();
+        int thisClass = pool.classRef(CLASS_NAME);
+        int superClass = pool.classRef("java/lang/Object");
+        int supplierInterface = pool.classRef("java/util/function/DoubleSupplier");
+        int codeAttribute = pool.utf8("Code");
+        int initName = pool.utf8("<init>");
+        int initDesc = pool.utf8("()V");
+        int objectInit = pool.methodRef("java/lang/Object", "<init>", "()V");
+        int getName = pool.utf8("getAsDouble");
+        int getDesc = pool.utf8("()D");
+
+        // translate the program, tracking the operand stack depth as we go
+        ByteArrayOutputStream codeBytes = new ByteArrayOutputStream(program.length * 2);
+        DataOutputStream code = new DataOutputStream(codeBytes);
+        int depth = 0;
+        int maxDepth = 0;
+        for (int pc = 0; pc < program.length; pc++) {
+            switch (program[pc]) {
+            case MathHelper.OP_CONST:
+                code.writeByte(LDC2_W);
+                code.writeShort(pool.doubleConst(constants[program[++pc]]));
+                maxDepth = Math.max(maxDepth, ++depth);
+                break;
+            case MathHelper.OP_ADD:
+                code.writeByte(DADD);
+                depth--;
+                break;
+            case MathHelper.OP_SUB:
+                code.writeByte(DSUB);
+                depth--;
+                break;
+            case MathHelper.OP_MUL:
+                code.writeByte(DMUL);
+                depth--;
+                break;
+            case MathHelper.OP_DIV:
+                code.writeByte(DDIV);
+                depth--;
+                break;
+            case MathHelper.OP_POW:
+                code.writeByte(INVOKESTATIC);
+                code.writeShort(pool.methodRef(MATH, "pow", "(DD)D"));
+                depth--;
+                break;
+            case MathHelper.OP_NEG:
+                code.writeByte(DNEG);
+                break;
+            case MathHelper.OP_CALL:
+                String name = MathHelper.FUNCTION_NAMES[program[++pc]];
+                code.writeByte(INVOKESTATIC);
+                // Math.round(double) returns a long
+                if (name.equals("round")) {
+                    code.writeShort(pool.methodRef(MATH, name, "(D)J"));
+                    code.writeByte(L2D);
+                } else {
+                    code.writeShort(pool.methodRef(MATH, name, "(D)D"));
+                }
+                break;
+            default:
+                throw new IllegalStateException("Invalid opcode: " + program[pc]);
+            }
+        }
+        code.writeByte(DRETURN);
+        if (codeBytes.size() > MAX_CODE_LENGTH || pool.size() > MAX_POOL_SIZE) {
+            return null;
+        }
+
+        ByteArrayOutputStream classBytes = new ByteArrayOutputStream(codeBytes.size() + 256);
+        DataOutputStream out = new DataOutputStream(classBytes);
+        out.writeInt(0xCAFEBABE);
+        out.writeShort(0);
+        out.writeShort(CLASS_VERSION);
+        pool.writeTo(out);
+        out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+        out.writeShort(thisClass);
+        out.writeShort(superClass);
+        out.writeShort(1);
+        out.writeShort(supplierInterface);
+        // no fields
+        out.writeShort(0);
+        out.writeShort(2);
+
+        // public <init>() { super(); }
+        out.writeShort(ACC_PUBLIC);
+        out.writeShort(initName);
+        out.writeShort(initDesc);
+        out.writeShort(1);
+        writeCode(out, codeAttribute, 1, new byte[] { (byte) ALOAD_0, (byte) INVOKESPECIAL, (byte) (objectInit >> 8), (byte) objectInit, (byte) RETURN });
+
+        // public final double getAsDouble() { return <expression>; }
+        out.writeShort(ACC_PUBLIC | ACC_FINAL);
+        out.writeShort(getName);
+        out.writeShort(getDesc);
+        out.writeShort(1);
+        // doubles take two stack slots each
+        writeCode(out, codeAttribute, Math.max(2, maxDepth * 2), codeBytes.toByteArray());
+
+        // no class attributes
+        out.writeShort(0);
+        return classBytes.toByteArray();
+    }
+
+    private static void writeCode(DataOutputStream out, int codeAttribute, int maxStack, byte[] code) throws IOException {
+        out.writeShort(codeAttribute);
+        out.writeInt(12 + code.length);
+        out.writeShort(maxStack);
+        // max locals, just this
+        out.writeShort(1);
+        out.writeInt(code.length);
+        out.write(code);
+        // no exception table or attributes
+        out.writeShort(0);
+        out.writeShort(0);
+    }
+
+    /**
+     * The constant pool of a generated class. Entries are written as they are added and deduplicated.
+     */
+    private static final class ConstantPool {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private final Map<String, Integer> entries = new HashMap<String, Integer>();
+        private int next = 1;
+
+        int utf8(String value) throws IOException {
+            String key = "utf8:" + value;
+            Integer index = entries.get(key);
+            if (index != null) return index;
+            out.writeByte(1);
+            out.writeUTF(value);
+            return add(key, 1);
+        }
+
+        int classRef(String name) throws IOException {
+            String key = "class:" + name;
+            Integer index = entries.get(key);
+            if (index != null) return index;
+            int nameIndex = utf8(name);
+            out.writeByte(7);
+            out.writeShort(nameIndex);
+            return add(key, 1);
+        }
+
+        int methodRef(String owner, String name, String descriptor) throws IOException {
+            String key = "method:" + owner + "." + name + descriptor;
+            Integer index = entries.get(key);
+            if (index != null) return index;
+            int ownerIndex = classRef(owner);
+            int nameAndType = nameAndType(name, descriptor);
+            out.writeByte(10);
+            out.writeShort(ownerIndex);
+            out.writeShort(nameAndType);
+            return add(key, 1);
+        }
+
+        int nameAndType(String name, String descriptor) throws IOException {
+            String key = "nat:" + name + descriptor;
+            Integer index = entries.get(key);
+            if (index != null) return index;
+            int nameIndex = utf8(name);
+            int descriptorIndex = utf8(descriptor);
+            out.writeByte(12);
+            out.writeShort(nameIndex);
+            out.writeShort(descriptorIndex);
+            return add(key, 1);
+        }
+
+        int doubleConst(double value) throws IOException {
+            String key = "double:" + Double.doubleToRawLongBits(value);
+            Integer index = entries.get(key);
+            if (index != null) return index;
+            out.writeByte(6);
+            out.writeDouble(value);
+            // doubles take up two pool slots
+            return add(key, 2);
+        }
+
+        int size() {
+            return next;
+        }
+
+        void writeTo(DataOutputStream dest) throws IOException {
+            dest.writeShort(next);
+            bytes.writeTo(dest);
+        }
+
+        private int add(String key, int slots) {
+            int index = next;
+            next += slots;
+            entries.put(key, index);
+            return index;
+        }
+    }
+}
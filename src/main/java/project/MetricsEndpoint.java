@@ -0,0 +1,209 @@
+package project;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.annotation.Nullable;
+
+import project.App.LogLevel;
+import project.PacketHelper.PacketType;
+
+/**
+ * Serves a server's metrics over HTTP at /metrics in the Prometheus text format, along with GC, heap and allocation stats from JMX.
+ * Runs on the JDK's built-in HTTP server with its own thread, so scrapes never touch the reactors.
+ * Latency quantiles are over everything recorded since the server started, Prometheus works out rates from the _sum and _count series.
+ */
+public class MetricsEndpoint {
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+    private final HttpServer http;
+    private final ServerMetrics metrics;
+
+    /**
+     * Binds the listener, it only answers once start is called.
+     *
+     * @param host the address to listen on
+     * @param port the port to listen on
+     * @param metrics the metrics to serve
+     * @throws IOException if the port can't be bound
+     */
+    public MetricsEndpoint(String host, int port, ServerMetrics metrics) throws IOException {
+        this.metrics = metrics;
+        this.http = HttpServer.create(new InetSocketAddress(host, port), 0);
+        this.http.createContext("/metrics", this::handle);
+    }
+
+    /**
+     * Starts an endpoint if a port is given. The server keeps running without one if the port can't be bound.
+     *
+     * @param port the port to listen on, 0 for no endpoint
+     * @return the started endpoint, or null
+     */
+    @Nullable
+    static MetricsEndpoint startIfEnabled(String host, int port, ServerMetrics metrics) {
+        if (port == 0) return null;
+        try {
+            MetricsEndpoint endpoint = new MetricsEndpoint(host, port, metrics);
+            endpoint.start();
+            return endpoint;
+        } catch (IOException e) {
+            App.log("Exception starting metrics endpoint on port " + port + ". Running without it...", LogLevel.ERROR);
+            return null;
+        }
+    }
+
+    public void start() {
+        http.start();
+        App.log("Serving metrics on http://" + http.getAddress().getHostString() + ":" + http.getAddress().getPort() + "/metrics", LogLevel.INFO);
+    }
+
+    public void stop() {
+        http.stop(0);
+    }
+
+    /**
+     * @return the port the listener is bound to
+     */
+    public int getPort() { return http.getAddress().getPort(); }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!exchange.getRequestMethod().equals("GET") && !exchange.getRequestMethod().equals("HEAD")) {
+                exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            if (!exchange.getRequestURI().getPath().equals("/metrics")) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            byte[] body = render(metrics.snapshot()).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            if (exchange.getRequestMethod().equals("HEAD")) {
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Formats a snapshot and the JVM's stats in the Prometheus text format.
+     *
+     * @param snapshot the server's metrics
+     * @return the body of a /metrics response
+     */
+    static String render(ServerMetrics.Snapshot snapshot) {
+        StringBuilder out = new StringBuilder(4096);
+        header(out, "mathserver_sessions", "gauge", "Connected clients.");
+        sample(out, "mathserver_sessions", "", snapshot.getSessions());
+        header(out, "mathserver_queue_depth", "gauge", "Requests waiting for a worker.");
+        sample(out, "mathserver_queue_depth", "", snapshot.getQueueDepth());
+
+        header(out, "mathserver_packets_received_total", "counter", "Packets received, by type.");
+        for (PacketType type : PacketType.values()) {
+            sample(out, "mathserver_packets_received_total", label("type", type.name()), snapshot.getPacketsIn(type));
+        }
+        header(out, "mathserver_packets_sent_total", "counter", "Packets sent, by type.");
+        for (PacketType type : PacketType.values()) {
+            sample(out, "mathserver_packets_sent_total", label("type", type.name()), snapshot.getPacketsOut(type));
+        }
+        header(out, "mathserver_requests_total", "counter", "MATH and MATH_BATCH requests evaluated.");
+        sample(out, "mathserver_requests_total", "", snapshot.getEval().getCount());
+        header(out, "mathserver_received_bytes_total", "counter", "Bytes read from client sockets.");
+        sample(out, "mathserver_received_bytes_total", "", snapshot.getBytesIn());
+        header(out, "mathserver_sent_bytes_total", "counter", "Bytes written to client sockets.");
+        sample(out, "mathserver_sent_bytes_total", "", snapshot.getBytesOut());
+        header(out, "mathserver_drops_total", "counter", "Clients dropped and requests turned away, by reason.");
+        for (ServerMetrics.DropReason reason : ServerMetrics.DropReason.values()) {
+            sample(out, "mathserver_drops_total", label("reason", reason.name().toLowerCase(Locale.ROOT)), snapshot.getDrops(reason));
+        }
+
+        summary(out, "mathserver_queue_wait_seconds", "Time requests waited for a worker.", snapshot.getQueueWait());
+        summary(out, "mathserver_eval_seconds", "Time spent parsing and evaluating requests.", snapshot.getEval());
+        summary(out, "mathserver_write_seconds", "Time spent in socket writes.", snapshot.getWrite());
+
+        jvm(out);
+        return out.toString();
+    }
+
+    /**
+     * Appends GC counts and time, heap usage and the bytes allocated by every thread so far.
+     */
+    private static void jvm(StringBuilder out) {
+        header(out, "jvm_gc_collections_total", "counter", "Garbage collections, by collector.");
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            sample(out, "jvm_gc_collections_total", label("gc", gc.getName()), Math.max(0, gc.getCollectionCount()));
+        }
+        header(out, "jvm_gc_collection_seconds_total", "counter", "Time spent in garbage collection, by collector.");
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            sample(out, "jvm_gc_collection_seconds_total", label("gc", gc.getName()), Math.max(0, gc.getCollectionTime()) / 1e3);
+        }
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        header(out, "jvm_memory_used_bytes", "gauge", "Memory in use, by area.");
+        sample(out, "jvm_memory_used_bytes", label("area", "heap"), memory.getHeapMemoryUsage().getUsed());
+        sample(out, "jvm_memory_used_bytes", label("area", "nonheap"), memory.getNonHeapMemoryUsage().getUsed());
+        header(out, "jvm_memory_committed_bytes", "gauge", "Memory committed, by area.");
+        sample(out, "jvm_memory_committed_bytes", label("area", "heap"), memory.getHeapMemoryUsage().getCommitted());
+        sample(out, "jvm_memory_committed_bytes", label("area", "nonheap"), memory.getNonHeapMemoryUsage().getCommitted());
+        // only HotSpot's ThreadMXBean can tell allocations
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) threads;
+            if (hotspot.isThreadAllocatedMemorySupported() && hotspot.isThreadAllocatedMemoryEnabled()) {
+                header(out, "jvm_allocated_bytes_total", "counter", "Heap memory allocated by every thread, live or finished.");
+                sample(out, "jvm_allocated_bytes_total", "", hotspot.getTotalThreadAllocatedBytes());
+            }
+        }
+        header(out, "jvm_threads", "gauge", "Live platform threads.");
+        sample(out, "jvm_threads", "", threads.getThreadCount());
+    }
+
+    /**
+     * Appends a histogram as a summary, in seconds.
+     */
+    private static void summary(StringBuilder out, String name, String help, Histogram.Snapshot histogram) {
+        header(out, name, "summary", help);
+        for (double quantile : QUANTILES) {
+            sample(out, name, label("quantile", Double.toString(quantile)), histogram.getValueAtPercentile(quantile * 100) / 1e9);
+        }
+        sample(out, name + "_sum", "", histogram.getSum() / 1e9);
+        sample(out, name + "_count", "", histogram.getCount());
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, long value) {
+        out.append(name).append(labels).append(' ').append(value).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, double value) {
+        out.append(name).append(labels).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * @return the label in braces, with the value escaped
+     */
+    private static String label(String name, String value) {
+        return "{" + name + "=\"" + value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + "\"}";
+    }
+}
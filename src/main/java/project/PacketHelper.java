@@ -1,21 +1,72 @@
 package project;
 
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+/**
+ * Builds, encodes and decodes protocol packets.
+ * On the wire every packet is a frame: a 4 byte big endian length followed by that many bytes of the encoded packet.
+ * Packets are encoded as UTF-8 JSON unless the client asked for the binary codec in its CONNECT, see Codec.
+ * Use a FrameDecoder per connection to split the incoming byte stream back into packets.
+ * MATH and MATH_BATCH packets may carry a request id, which the server echoes in the ACK and RESULT for that request
+ * so a client can have many requests in flight on one connection and still match up the answers.
+ */
 public class PacketHelper {
+    // max number of expressions in a single MATH_BATCH
+    public static final int MAX_BATCH_SIZE = 1000;
+    // size of the length prefix in front of every frame
+    public static final int FRAME_HEADER_SIZE = 4;
+    // max size of a single frame, not counting the length prefix
+    public static final int MAX_FRAME_SIZE = 1024 * 1024;
+    // id of packets that don't belong to a request
+    public static final long NO_ID = -1;
 
     static Packet ACK(Object sender) {
         return new Packet(PacketType.ACK, sender);
     }
 
+    static Packet ACK(Object sender, long id) {
+        return new Packet(PacketType.ACK, sender, null, id);
+    }
+
+    /**
+     * Builds the ACK answering a CONNECT, telling the client which codec the connection uses from now on.
+     */
+    static Packet ACK(Object sender, Codec codec) {
+        return new Packet(PacketType.ACK, sender, codec == Codec.JSON ? null : codec.toString());
+    }
+
     static Packet CONNECT(Object sender) {
         return new Packet(PacketType.CONNECT, sender, null);
     }
 
+    /**
+     * Builds a CONNECT asking for the given codec. Servers that don't know the codec answer with a plain ACK and keep using JSON.
+     */
+    static Packet CONNECT(Object sender, Codec codec) {
+        return new Packet(PacketType.CONNECT, sender, codec == Codec.JSON ? null : codec.toString());
+    }
+
+    /**
+     * @param p a CONNECT, or the ACK answering it
+     * @return the codec asked for or agreed to, JSON if the packet doesn't name one this side knows
+     */
+    static Codec codecOf(Packet p) {
+        return Codec.BINARY.toString().equals(p.getContent()) ? Codec.BINARY : Codec.JSON;
+    }
+
     static Packet DISCONNECT(Object sender, String content) {
         return new Packet(PacketType.DISCONNECT, sender, content);
     }
@@ -28,55 +79,263 @@ public class PacketHelper {
         return new Packet(PacketType.MATH, sender, content);
     }
 
+    static Packet MATH(Object sender, String content, long id) {
+        return new Packet(PacketType.MATH, sender, content, id);
+    }
+
     static Packet RESULT(Object sender, String content) {
         return new Packet(PacketType.RESULT, sender, content);
     }
 
+    static Packet RESULT(Object sender, String content, long id) {
+        return new Packet(PacketType.RESULT, sender, content, id);
+    }
+
+    /**
+     * Builds a MATH_BATCH packet. Each expression gets its index in the list as its id.
+     * The content is a JSON array of {"id": ..., "expr": ...} objects.
+     */
+    static Packet MATH_BATCH(Object sender, List<String> expressions) {
+        return MATH_BATCH(sender, expressions, NO_ID);
+    }
+
+    /**
+     * Builds a MATH_BATCH packet for the request with the given id.
+     * The id of the request is separate from the ids of the expressions inside the batch.
+     */
+    static Packet MATH_BATCH(Object sender, List<String> expressions, long id) {
+        JSONArray items = new JSONArray();
+        for (int i = 0; i < expressions.size(); i++) {
+            items.put(new JSONObject().put("id", i).put("expr", expressions.get(i)));
+        }
+        return new Packet(PacketType.MATH_BATCH, sender, items.toString(), id);
+    }
+
+    /**
+     * Builds a RESULT_BATCH packet. The content is a JSON array with one {"id": ..., "result": ...} or {"id": ..., "error": ...}
+     * object per expression of the batch, in the same order.
+     */
+    static Packet RESULT_BATCH(Object sender, List<BatchResult> results) {
+        return RESULT_BATCH(sender, results, NO_ID);
+    }
+
+    /**
+     * Builds a RESULT_BATCH packet answering the MATH_BATCH request with the given id.
+     */
+    static Packet RESULT_BATCH(Object sender, List<BatchResult> results, long id) {
+        JSONArray items = new JSONArray();
+        for (BatchResult result : results) {
+            JSONObject item = new JSONObject().put("id", result.getId());
+            if (result.isError()) {
+                item.put("error", result.getError());
+            } else {
+                item.put("result", result.getResult());
+            }
+            items.put(item);
+        }
+        return new Packet(PacketType.RESULT_BATCH, sender, items.toString(), id);
+    }
+
+    /**
+     * Parses the content of a MATH_BATCH packet.
+     *
+     * @param content the packet content
+     * @return the expressions in the batch, in order
+     * @throws JSONException if the content is missing, malformed or has more than MAX_BATCH_SIZE expressions
+     */
+    static List<BatchItem> parseBatch(String content) throws JSONException {
+        if (content == null) { throw new JSONException("Missing batch"); }
+        JSONArray array = new JSONArray(content);
+        if (array.length() > MAX_BATCH_SIZE) { throw new JSONException("Batch too large"); }
+        List<BatchItem> items = new ArrayList<BatchItem>(array.length());
+        for (int i = 0; i < array.length(); i++) {
+            JSONObject item = array.getJSONObject(i);
+            items.add(new BatchItem(item.getLong("id"), item.getString("expr")));
+        }
+        return items;
+    }
+
+    /**
+     * Parses the content of a RESULT_BATCH packet.
+     *
+     * @param content the packet content
+     * @return the results in the batch, in order
+     * @throws JSONException if the content is missing or malformed
+     */
+    static List<BatchResult> parseBatchResults(String content) throws JSONException {
+        if (content == null) { throw new JSONException("Missing batch"); }
+        JSONArray array = new JSONArray(content);
+        List<BatchResult> results = new ArrayList<BatchResult>(array.length());
+        for (int i = 0; i < array.length(); i++) {
+            JSONObject item = array.getJSONObject(i);
+            results.add(item.has("error") ? BatchResult.ofError(item.getLong("id"), item.getString("error")) : new BatchResult(item.getLong("id"), item.getString("result"), null));
+        }
+        return results;
+    }
+
+    /**
+     * Parses a single complete frame, as returned by Packet.toBuffer().
+     *
+     * @param buffer the frame, from its position to its limit
+     * @return the packet in the frame
+     * @throws JSONException if the buffer doesn't hold exactly one valid frame
+     */
     static Packet parse(ByteBuffer buffer) throws JSONException {
-        try {
-            return new Packet(new String(buffer.array()).trim());
-        } catch (JSONException e) {
-            throw new JSONException("Invalid JSON");
+        FrameDecoder decoder = new FrameDecoder();
+        decoder.feed(buffer);
+        Packet p = decoder.next();
+        if (p == null || decoder.hasRemaining()) { throw new JSONException("Invalid frame"); }
+        return p;
+    }
+
+    /**
+     * Writes an unsigned LEB128 varint, 7 bits per byte with the high bit set on every byte but the last.
+     */
+    private static ByteBuffer putVarLong(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        return buffer.put((byte) value);
+    }
+
+    private static long getVarLong(ByteBuffer buffer) throws JSONException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+        throw new JSONException("Invalid varint");
+    }
+
+    private static int varLongSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Reads length bytes of UTF-8 at the buffer's position.
+     */
+    private static String getString(ByteBuffer buffer, long length) throws JSONException {
+        if (length < 0 || length > buffer.remaining()) { throw new JSONException("Invalid string length"); }
+        String s;
+        if (buffer.hasArray()) {
+            s = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), (int) length, StandardCharsets.UTF_8);
+        } else {
+            byte[] bytes = new byte[(int) length];
+            buffer.get(buffer.position(), bytes);
+            s = new String(bytes, StandardCharsets.UTF_8);
         }
+        buffer.position(buffer.position() + (int) length);
+        return s;
     }
 
     public static class Packet {
         private final PacketType TYPE;
         private final String SENDER;
-        private final Instant TIMESTAMP;
+        // decoded packets keep the text of their timestamp and only parse it when asked for it
+        private volatile Instant timestamp;
+        private final String timestampText;
         private final String CONTENT;
-        private final JSONObject json;
+        private final long ID;
+        // set if the packet is encoded by patching a prebuilt frame
+        private final Template template;
+        // encoded frames, built the first time the packet is sent with each codec
+        private volatile ByteBuffer jsonFrame;
+        private volatile ByteBuffer binaryFrame;
 
         public Packet(PacketType type, Object sender) {
             this(type, sender, null);
         }
 
         public Packet(PacketType type, Object sender, String content) {
+            this(type, sender, content, NO_ID);
+        }
+
+        public Packet(PacketType type, Object sender, String content, long id) {
+            this(type, sender.toString(), Instant.now(), content, id);
+        }
+
+        private Packet(PacketType type, String sender, Instant timestamp, String content, long id) {
+            this(type, sender, timestamp, null, content, id);
+        }
+
+        /**
+         * @param timestamp the timestamp, or null to parse timestampText when it's first needed
+         * @param timestampText the timestamp as it was received, or null if the packet was built here
+         */
+        Packet(PacketType type, String sender, Instant timestamp, String timestampText, String content, long id) {
+            this(type, sender, timestamp, timestampText, content, id, null);
+        }
+
+        private Packet(PacketType type, String sender, Instant timestamp, String timestampText, String content, long id, Template template) {
             this.TYPE = type;
-            this.SENDER = sender.toString();
-            this.TIMESTAMP = Instant.now();
+            this.SENDER = sender;
+            this.timestamp = timestamp;
+            this.timestampText = timestampText;
             this.CONTENT = content;
-            this.json = jsonify();
+            this.ID = id;
+            this.template = template;
         }
 
+        /**
+         * Parses a packet with org.json. Frames are decoded with PacketJson instead, this is kept to check it against.
+         */
         public Packet(String json) throws JSONException{
             try {
-                this.json = new JSONObject(json);
-            } catch (Exception e) {
+                JSONObject jobj = new JSONObject(json);
+                this.TYPE = PacketType.valueOf(jobj.getString("type"));
+                this.SENDER = jobj.getString("sender");
+                this.timestamp = Instant.parse(jobj.getString("timestamp"));
+                this.timestampText = null;
+                this.CONTENT = jobj.has("content") ? jobj.getString("content") : null;
+                this.ID = jobj.has("id") ? jobj.getLong("id") : NO_ID;
+                this.template = null;
+                if (this.ID < NO_ID) { throw new JSONException("Invalid id"); }
+            } catch (JSONException | IllegalArgumentException | DateTimeParseException e) {
                 throw new JSONException("Invalid JSON");
             }
-            this.TYPE = PacketType.valueOf(this.json.getString("type"));
-            this.SENDER = this.json.getString("sender");
-            this.TIMESTAMP = Instant.parse(this.json.getString("timestamp"));
-            this.CONTENT = this.json.has("content") ? this.json.getString("content") : null;
         }
 
-        private JSONObject jsonify() {
+        /**
+         * Decodes a packet encoded with the binary codec.
+         *
+         * @param frame the frame without its length prefix, from its position to its limit
+         * @return the packet
+         * @throws JSONException if the frame doesn't hold exactly one valid binary packet
+         */
+        static Packet fromBinary(ByteBuffer frame) throws JSONException {
+            try {
+                int type = frame.get();
+                if (type < 0 || type >= PacketType.values().length) { throw new JSONException("Invalid type"); }
+                String sender = getString(frame, getVarLong(frame));
+                long nanos = frame.getLong();
+                long id = getVarLong(frame) - 1;
+                if (id < NO_ID) { throw new JSONException("Invalid id"); }
+                long contentLength = getVarLong(frame);
+                String content = contentLength == 0 ? null : getString(frame, contentLength - 1);
+                if (frame.hasRemaining()) { throw new JSONException("Trailing bytes"); }
+                return new Packet(PacketType.values()[type], sender, Instant.ofEpochSecond(0, nanos), content, id);
+            } catch (BufferUnderflowException e) {
+                throw new JSONException("Invalid binary packet");
+            }
+        }
+
+        /**
+         * Builds the packet as a JSONObject. Frames are encoded with PacketJson instead, this is kept to check it against.
+         */
+        JSONObject jsonify() {
             JSONObject jobj =  new JSONObject();
             jobj.put("type", this.TYPE);
             jobj.put("sender", SENDER);
-            jobj.put("timestamp", TIMESTAMP.toString());
+            jobj.put("timestamp", getTimestampText());
             if (this.CONTENT != null) jobj.put("content", CONTENT);
+            if (this.ID != NO_ID) jobj.put("id", ID);
             return jobj;
         }
 
@@ -88,26 +347,280 @@ public class PacketHelper {
             return SENDER;
         }
 
-        public Instant getTimestamp() {
-            return TIMESTAMP;
+        /**
+         * @return the time the packet was built by its sender
+         * @throws JSONException if the packet was received with a timestamp that looked right but is not a valid date
+         */
+        public Instant getTimestamp() throws JSONException {
+            // racing threads would both parse the same text, which is harmless
+            if (timestamp == null) {
+                try {
+                    timestamp = Instant.parse(timestampText);
+                } catch (DateTimeParseException e) {
+                    throw new JSONException("Invalid timestamp");
+                }
+            }
+            return timestamp;
+        }
+
+        /**
+         * @return the timestamp as sent on the wire
+         */
+        String getTimestampText() {
+            return timestampText != null ? timestampText : timestamp.toString();
         }
 
         public String getContent() {
             return CONTENT;
         }
 
+        /**
+         * @return the id of the request this packet belongs to, or NO_ID if it doesn't carry one
+         */
+        public long getId() {
+            return ID;
+        }
+
+        public boolean hasId() {
+            return ID != NO_ID;
+        }
+
+        /**
+         * Encodes the packet as a JSON frame ready to be written to a socket.
+         *
+         * @return the length prefixed frame
+         */
         public ByteBuffer toBuffer() {
-            return ByteBuffer.wrap(json.toString().getBytes());
+            return toBuffer(Codec.JSON);
+        }
+
+        /**
+         * Encodes the packet as a frame ready to be written to a socket.
+         * The frame is built once per codec and kept, so sending the same packet again only costs a duplicate of the buffer.
+         *
+         * @param codec the codec the connection uses
+         * @return the length prefixed frame
+         */
+        public ByteBuffer toBuffer(Codec codec) {
+            ByteBuffer frame = codec == Codec.BINARY ? binaryFrame : jsonFrame;
+            if (frame == null) {
+                frame = template != null ? template.frame(codec, getTimestamp(), ID) : null;
+                // templates only cover years 0 to 9999
+                if (frame == null) frame = codec == Codec.BINARY ? toBinary() : PacketJson.encode(this);
+                if (codec == Codec.BINARY) {
+                    binaryFrame = frame;
+                } else {
+                    jsonFrame = frame;
+                }
+            }
+            return frame.duplicate();
+        }
+
+        private ByteBuffer toBinary() {
+            byte[] sender = SENDER.getBytes(StandardCharsets.UTF_8);
+            byte[] content = CONTENT != null ? CONTENT.getBytes(StandardCharsets.UTF_8) : null;
+            long contentLength = content != null ? content.length + 1 : 0;
+            int length = 1 + varLongSize(sender.length) + sender.length + 8 + varLongSize(ID + 1) + varLongSize(contentLength) + (content != null ? content.length : 0);
+            if (length > MAX_FRAME_SIZE) { throw new IllegalArgumentException("Packet too large"); }
+            ByteBuffer buffer = ByteBuffer.allocate(FRAME_HEADER_SIZE + length);
+            buffer.putInt(length).put((byte) TYPE.ordinal());
+            putVarLong(buffer, sender.length).put(sender);
+            Instant time = getTimestamp();
+            buffer.putLong(Math.addExact(Math.multiplyExact(time.getEpochSecond(), 1_000_000_000L), time.getNano()));
+            putVarLong(buffer, ID + 1);
+            putVarLong(buffer, contentLength);
+            if (content != null) buffer.put(content);
+            return buffer.flip();
         }
     }
 
+    /**
+     * A prebuilt frame for a packet without content that one sender sends over and over, like the server's HEARTBEAT and ACK.
+     * Frames are encoded once per codec up to and including the timestamp, which is written with a fixed width,
+     * so building one for a new packet is a copy of the bytes, the current time written over the old one and the id put at the end.
+     */
+    public static class Template {
+        // the JSON timestamp, always with all 9 fraction digits
+        private static final int TIMESTAMP_LENGTH = "2000-01-01T00:00:00.000000000Z".length();
+
+        private final PacketType type;
+        private final String sender;
+        // indexed by codec. each holds the frame up to its timestamp, the length prefix is filled in per frame
+        private final byte[][] heads = new byte[Codec.values().length][];
+
+        /**
+         * @param type the type of the packets
+         * @param sender the sender of the packets
+         */
+        public Template(PacketType type, Object sender) {
+            this.type = type;
+            this.sender = sender.toString();
+            // encode a packet without content or id and cut off what comes after the timestamp
+            Packet sample = new Packet(type, this.sender, Instant.EPOCH, "1970-01-01T00:00:00.000000000Z", null, NO_ID);
+            ByteBuffer json = PacketJson.encode(sample);
+            // JSON ends with the closing brace
+            heads[Codec.JSON.ordinal()] = Arrays.copyOf(json.array(), json.limit() - 1);
+            ByteBuffer binary = sample.toBinary();
+            // binary ends with the id and the content length, one byte each
+            heads[Codec.BINARY.ordinal()] = Arrays.copyOf(binary.array(), binary.limit() - 2);
+        }
+
+        /**
+         * @return a new packet sent with this template, without an id
+         */
+        public Packet packet() {
+            return packet(NO_ID);
+        }
+
+        /**
+         * @return a new packet sent with this template
+         */
+        public Packet packet(long id) {
+            return new Packet(type, sender, Instant.now(), null, null, id, this);
+        }
+
+        /**
+         * Builds a frame from the template.
+         *
+         * @return the frame, or null if the timestamp can't be written with a fixed width
+         */
+        private ByteBuffer frame(Codec codec, Instant timestamp, long id) {
+            byte[] head = heads[codec.ordinal()];
+            ByteBuffer frame;
+            if (codec == Codec.BINARY) {
+                frame = ByteBuffer.allocate(head.length + varLongSize(id + 1) + 1).put(head);
+                frame.putLong(head.length - 8, Math.addExact(Math.multiplyExact(timestamp.getEpochSecond(), 1_000_000_000L), timestamp.getNano()));
+                putVarLong(frame, id + 1).put((byte) 0);
+            } else {
+                LocalDateTime time = LocalDateTime.ofEpochSecond(timestamp.getEpochSecond(), timestamp.getNano(), ZoneOffset.UTC);
+                if (time.getYear() < 0 || time.getYear() > 9999) return null;
+                byte[] idBytes = id != NO_ID ? (",\"id\":" + id).getBytes(StandardCharsets.US_ASCII) : null;
+                byte[] bytes = Arrays.copyOf(head, head.length + (idBytes != null ? idBytes.length : 0) + 1);
+                int at = head.length - 1 - TIMESTAMP_LENGTH;
+                at = putDigits(bytes, at, time.getYear(), 4) + 1;
+                at = putDigits(bytes, at, time.getMonthValue(), 2) + 1;
+                at = putDigits(bytes, at, time.getDayOfMonth(), 2) + 1;
+                at = putDigits(bytes, at, time.getHour(), 2) + 1;
+                at = putDigits(bytes, at, time.getMinute(), 2) + 1;
+                at = putDigits(bytes, at, time.getSecond(), 2) + 1;
+                putDigits(bytes, at, time.getNano(), 9);
+                if (idBytes != null) System.arraycopy(idBytes, 0, bytes, head.length, idBytes.length);
+                bytes[bytes.length - 1] = '}';
+                frame = ByteBuffer.wrap(bytes).position(bytes.length);
+            }
+            frame.putInt(0, frame.position() - FRAME_HEADER_SIZE);
+            return frame.flip();
+        }
+
+        /**
+         * Writes a number as a fixed count of ASCII digits, padded with zeros.
+         *
+         * @return the index after the last digit
+         */
+        private static int putDigits(byte[] bytes, int at, int value, int count) {
+            for (int i = at + count - 1; i >= at; i--) {
+                bytes[i] = (byte) ('0' + value % 10);
+                value /= 10;
+            }
+            return at + count;
+        }
+    }
+
+    /**
+     * Splits a stream of bytes from one connection back into packets.
+     * Bytes are fed in as they are read, in whatever chunks TCP delivers them, and are kept until a whole frame has arrived.
+     * A single read can therefore produce zero, one or many packets.
+     */
+    public static class FrameDecoder {
+        private static final int INITIAL_CAPACITY = 4096;
+
+        // accumulated bytes, always in write mode. bytes before readIndex have already been decoded
+        private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_CAPACITY);
+        private int readIndex = 0;
+        private Codec codec = Codec.JSON;
+
+        /**
+         * Appends the remaining bytes of the given buffer to the stream.
+         *
+         * @param src the bytes read from the connection, from its position to its limit
+         */
+        public void feed(ByteBuffer src) {
+            // drop what has already been decoded before growing
+            if (readIndex > 0) {
+                buffer.flip().position(readIndex);
+                buffer.compact();
+                readIndex = 0;
+            }
+            if (buffer.remaining() < src.remaining()) {
+                int capacity = buffer.capacity();
+                while (capacity - buffer.position() < src.remaining()) {
+                    capacity *= 2;
+                }
+                ByteBuffer grown = ByteBuffer.allocate(capacity);
+                buffer.flip();
+                grown.put(buffer);
+                buffer = grown;
+            }
+            buffer.put(src);
+        }
+
+        /**
+         * Decodes the next complete packet from the stream.
+         *
+         * @return the next packet, or null if a whole frame hasn't arrived yet
+         * @throws JSONException if the frame length is invalid or the frame doesn't hold a valid packet
+         */
+        public Packet next() throws JSONException {
+            int available = buffer.position() - readIndex;
+            if (available < FRAME_HEADER_SIZE) return null;
+            int length = buffer.getInt(readIndex);
+            if (length < 0 || length > MAX_FRAME_SIZE) { throw new JSONException("Invalid frame length " + length); }
+            if (available < FRAME_HEADER_SIZE + length) return null;
+            int start = readIndex + FRAME_HEADER_SIZE;
+            readIndex += FRAME_HEADER_SIZE + length;
+            if (codec == Codec.BINARY) {
+                return Packet.fromBinary(buffer.duplicate().limit(start + length).position(start));
+            }
+            return PacketJson.decode(buffer.array(), buffer.arrayOffset() + start, length);
+        }
+
+        /**
+         * Switches the codec frames are decoded with, starting with the next frame.
+         */
+        public void setCodec(Codec codec) { this.codec = codec; }
+
+        public Codec getCodec() { return codec; }
+
+        /**
+         * @return true if there are bytes of a partial frame waiting for the rest to arrive
+         */
+        public boolean hasRemaining() {
+            return buffer.position() > readIndex;
+        }
+    }
+
+    /**
+     * How packets are encoded inside their frames. Every connection starts out with JSON, and switches to BINARY for every packet
+     * after the ACK to CONNECT if the client asked for it in its CONNECT and the server agreed in that ACK.
+     * A BINARY packet is the type as one byte, the sender as a varint length and UTF-8, the timestamp as 8 bytes of epoch nanos,
+     * the id plus one as a varint so NO_ID is 0, and the content as a varint length plus one, 0 meaning no content, and UTF-8.
+     * Varints are unsigned LEB128.
+     */
+    public enum Codec {
+        JSON,
+        BINARY
+    }
+
+    // the binary codec sends the ordinal, so only ever add new types at the end
     public enum PacketType {
         CONNECT("CONNECT"), 
         DISCONNECT("DISCONNECT"), 
         ACK("ACK"), 
         HEARTBEAT("HEARTBEAT"), 
         MATH("MATH"), 
-        RESULT("RESULT");
+        RESULT("RESULT"),
+        MATH_BATCH("MATH_BATCH"),
+        RESULT_BATCH("RESULT_BATCH");
 
         private final String type;
 
@@ -120,4 +633,53 @@ public class PacketHelper {
             return type;
         }
     } 
+
+    /**
+     * One expression of a MATH_BATCH.
+     */
+    public static class BatchItem {
+        private final long id;
+        private final String expression;
+
+        public BatchItem(long id, String expression) {
+            this.id = id;
+            this.expression = expression;
+        }
+
+        public long getId() { return id; }
+
+        public String getExpression() { return expression; }
+    }
+
+    /**
+     * The result of one expression of a MATH_BATCH, either a value or an error message.
+     * Values are kept as text, the same way a RESULT packet carries them.
+     */
+    public static class BatchResult {
+        private final long id;
+        private final String result;
+        private final String error;
+
+        private BatchResult(long id, String result, String error) {
+            this.id = id;
+            this.result = result;
+            this.error = error;
+        }
+
+        public static BatchResult ofValue(long id, double value) {
+            return new BatchResult(id, "" + value, null);
+        }
+
+        public static BatchResult ofError(long id, String error) {
+            return new BatchResult(id, null, error);
+        }
+
+        public long getId() { return id; }
+
+        public boolean isError() { return error != null; }
+
+        public String getResult() { return result; }
+
+        public String getError() { return error; }
+    }
 }
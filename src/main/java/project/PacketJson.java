@@ -0,0 +1,539 @@
+package project;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+
+import org.json.JSONException;
+
+import project.PacketHelper.Packet;
+import project.PacketHelper.PacketType;
+
+/**
+ * Reads and writes the JSON form of a packet without going through org.json.
+ * Packets have a fixed schema of five fields, so instead of building a JSONObject the decoder walks the bytes of the frame once,
+ * picking out type, sender, timestamp, content and id, and the encoder writes them straight into the frame.
+ * Timestamps in the form Instant.toString() produces are only checked for their shape while decoding and parsed the first time they are used.
+ * The format on the wire is the same as before: fields may come in any order, unknown fields are skipped and strings use the usual JSON escapes.
+ */
+final class PacketJson {
+    private static final int TYPE = 0;
+    private static final int SENDER = 1;
+    private static final int TIMESTAMP = 2;
+    private static final int CONTENT = 3;
+    private static final int ID = 4;
+    private static final String[] FIELDS = { "type", "sender", "timestamp", "content", "id" };
+    private static final byte[][] FIELD_NAMES = ascii(FIELDS);
+    private static final byte[][] TYPE_NAMES = new byte[PacketType.values().length][];
+    private static final byte[] HEX = ascii("0123456789abcdef")[0];
+
+    static {
+        for (PacketType type : PacketType.values()) {
+            TYPE_NAMES[type.ordinal()] = type.toString().getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    private PacketJson() {}
+
+    /**
+     * Decodes a packet from its JSON form.
+     *
+     * @param bytes the array holding the JSON
+     * @param offset where the JSON starts
+     * @param length the length of the JSON in bytes
+     * @return the packet
+     * @throws JSONException if the bytes are not a valid packet
+     */
+    static Packet decode(byte[] bytes, int offset, int length) throws JSONException {
+        return new Reader(bytes, offset, offset + length).readPacket();
+    }
+
+    /**
+     * Encodes a packet as a length prefixed JSON frame.
+     *
+     * @param p the packet
+     * @return the frame, ready to be written
+     */
+    static ByteBuffer encode(Packet p) {
+        Writer out = new Writer(64 + 3 * (p.getSender().length() + (p.getContent() != null ? p.getContent().length() : 0)));
+        out.skip(PacketHelper.FRAME_HEADER_SIZE);
+        out.raw((byte) '{');
+        out.field(TYPE, true);
+        out.raw((byte) '"').raw(TYPE_NAMES[p.getType().ordinal()]).raw((byte) '"');
+        out.field(SENDER, false);
+        out.string(p.getSender());
+        out.field(TIMESTAMP, false);
+        out.string(p.getTimestampText());
+        if (p.getContent() != null) {
+            out.field(CONTENT, false);
+            out.string(p.getContent());
+        }
+        if (p.hasId()) {
+            out.field(ID, false);
+            out.number(p.getId());
+        }
+        out.raw((byte) '}');
+        return out.toFrame();
+    }
+
+    /**
+     * Checks if a timestamp has the form Instant.toString() gives it, yyyy-MM-ddTHH:mm:ss with up to 9 fraction digits and a Z,
+     * with every field in range, so parsing it later can only fail on a day past the end of its month.
+     */
+    static boolean isPlainInstant(String s) {
+        int n = s.length();
+        if (n < 20 || n == 21 || n > 30 || s.charAt(n - 1) != 'Z') return false;
+        for (int i = 0; i < n - 1; i++) {
+            char c = s.charAt(i);
+            switch (i) {
+            case 4:
+            case 7:
+                if (c != '-') return false;
+                break;
+            case 10:
+                if (c != 'T') return false;
+                break;
+            case 13:
+            case 16:
+                if (c != ':') return false;
+                break;
+            case 19:
+                if (c != '.') return false;
+                break;
+            default:
+                if (c < '0' || c > '9') return false;
+            }
+        }
+        int month = digits(s, 5), day = digits(s, 8), hour = digits(s, 11), minute = digits(s, 14), second = digits(s, 17);
+        return month >= 1 && month <= 12 && day >= 1 && day <= 31 && hour < 24 && minute < 60 && second < 60;
+    }
+
+    private static int digits(String s, int index) {
+        return (s.charAt(index) - '0') * 10 + s.charAt(index + 1) - '0';
+    }
+
+    private static byte[][] ascii(String... strings) {
+        byte[][] out = new byte[strings.length][];
+        for (int i = 0; i < strings.length; i++) {
+            out[i] = strings[i].getBytes(StandardCharsets.US_ASCII);
+        }
+        return out;
+    }
+
+    /**
+     * Walks the bytes of one JSON packet.
+     */
+    private static class Reader {
+        private final byte[] bytes;
+        private final int end;
+        private int pos;
+
+        Reader(byte[] bytes, int start, int end) {
+            this.bytes = bytes;
+            this.pos = start;
+            this.end = end;
+        }
+
+        Packet readPacket() throws JSONException {
+            PacketType type = null;
+            String sender = null;
+            String timestamp = null;
+            Instant parsed = null;
+            String content = null;
+            long id = PacketHelper.NO_ID;
+            boolean hasId = false;
+
+            skipWhitespace();
+            expect('{');
+            skipWhitespace();
+            if (peek() == '}') {
+                pos++;
+            } else {
+                while (true) {
+                    skipWhitespace();
+                    int field = readKey();
+                    skipWhitespace();
+                    expect(':');
+                    skipWhitespace();
+                    switch (field) {
+                    case TYPE:
+                        if (type != null) throw invalid("Duplicate type");
+                        type = readType();
+                        break;
+                    case SENDER:
+                        if (sender != null) throw invalid("Duplicate sender");
+                        sender = readString();
+                        break;
+                    case TIMESTAMP:
+                        if (timestamp != null) throw invalid("Duplicate timestamp");
+                        timestamp = readString();
+                        // anything other than the usual form is parsed right away, so it is rejected here if it's invalid
+                        if (!isPlainInstant(timestamp)) {
+                            try {
+                                parsed = Instant.parse(timestamp);
+                            } catch (DateTimeParseException e) {
+                                throw invalid("Invalid timestamp");
+                            }
+                        }
+                        break;
+                    case CONTENT:
+                        if (content != null) throw invalid("Duplicate content");
+                        content = readString();
+                        break;
+                    case ID:
+                        if (hasId) throw invalid("Duplicate id");
+                        id = readLong();
+                        hasId = true;
+                        break;
+                    default:
+                        skipValue();
+                    }
+                    skipWhitespace();
+                    byte c = next();
+                    if (c == '}') break;
+                    if (c != ',') throw invalid("Expected , or }");
+                }
+            }
+            skipWhitespace();
+            if (pos != end) throw invalid("Trailing bytes");
+            if (type == null || sender == null || timestamp == null) throw invalid("Missing field");
+            if (id < PacketHelper.NO_ID) throw invalid("Invalid id");
+            return new Packet(type, sender, parsed, timestamp, content, id);
+        }
+
+        /**
+         * Reads a field name, comparing its bytes to the known names without making a String if it has no escapes.
+         *
+         * @return the field, or -1 for a field packets don't have
+         */
+        private int readKey() throws JSONException {
+            expect('"');
+            int start = pos;
+            while (pos < end && bytes[pos] != '"' && bytes[pos] != '\\') {
+                pos++;
+            }
+            if (pos < end && bytes[pos] == '"') {
+                int field = match(FIELD_NAMES, start, pos);
+                pos++;
+                return field;
+            }
+            pos = start - 1;
+            String key = readString();
+            return Arrays.asList(FIELDS).indexOf(key);
+        }
+
+        private PacketType readType() throws JSONException {
+            expect('"');
+            int start = pos;
+            while (pos < end && bytes[pos] != '"' && bytes[pos] != '\\') {
+                pos++;
+            }
+            if (pos < end && bytes[pos] == '"') {
+                int type = match(TYPE_NAMES, start, pos);
+                pos++;
+                if (type < 0) throw invalid("Invalid type");
+                return PacketType.values()[type];
+            }
+            pos = start - 1;
+            try {
+                return PacketType.valueOf(readString());
+            } catch (IllegalArgumentException e) {
+                throw invalid("Invalid type");
+            }
+        }
+
+        /**
+         * @return the index of the name equal to bytes[from, to), or -1
+         */
+        private int match(byte[][] names, int from, int to) {
+            for (int i = 0; i < names.length; i++) {
+                byte[] name = names[i];
+                if (name.length == to - from && Arrays.equals(bytes, from, to, name, 0, name.length)) return i;
+            }
+            return -1;
+        }
+
+        /**
+         * Reads a string, decoding it straight from the bytes if it has no escapes.
+         */
+        private String readString() throws JSONException {
+            expect('"');
+            int start = pos;
+            while (pos < end) {
+                byte b = bytes[pos];
+                if (b == '"') {
+                    String s = new String(bytes, start, pos - start, StandardCharsets.UTF_8);
+                    pos++;
+                    return s;
+                }
+                if (b == '\\') break;
+                if (b >= 0 && b < 0x20) throw invalid("Control character in string");
+                pos++;
+            }
+            if (pos >= end) throw invalid("Unterminated string");
+
+            // has escapes. runs between them are decoded as UTF-8, escapes are all ASCII so they never split a character
+            StringBuilder sb = new StringBuilder(pos - start + 16);
+            sb.append(new String(bytes, start, pos - start, StandardCharsets.UTF_8));
+            while (true) {
+                if (pos >= end) throw invalid("Unterminated string");
+                byte b = bytes[pos];
+                if (b == '"') {
+                    pos++;
+                    return sb.toString();
+                }
+                if (b == '\\') {
+                    pos++;
+                    sb.append(readEscape());
+                    continue;
+                }
+                int run = pos;
+                while (pos < end && bytes[pos] != '"' && bytes[pos] != '\\') {
+                    if (bytes[pos] >= 0 && bytes[pos] < 0x20) throw invalid("Control character in string");
+                    pos++;
+                }
+                sb.append(new String(bytes, run, pos - run, StandardCharsets.UTF_8));
+            }
+        }
+
+        private char readEscape() throws JSONException {
+            byte c = next();
+            switch (c) {
+            case '"':
+            case '\\':
+            case '/':
+                return (char) c;
+            case 'b':
+                return '\b';
+            case 'f':
+                return '\f';
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 't':
+                return '\t';
+            case 'u':
+                int value = 0;
+                for (int i = 0; i < 4; i++) {
+                    int digit = Character.digit(next(), 16);
+                    if (digit < 0) throw invalid("Invalid unicode escape");
+                    value = value * 16 + digit;
+                }
+                return (char) value;
+            default:
+                throw invalid("Invalid escape");
+            }
+        }
+
+        private long readLong() throws JSONException {
+            boolean negative = pos < end && bytes[pos] == '-';
+            if (negative) pos++;
+            int start = pos;
+            long value = 0;
+            try {
+                while (pos < end && bytes[pos] >= '0' && bytes[pos] <= '9') {
+                    value = Math.addExact(Math.multiplyExact(value, 10), bytes[pos] - '0');
+                    pos++;
+                }
+            } catch (ArithmeticException e) {
+                throw invalid("Id out of range");
+            }
+            if (pos == start) throw invalid("Expected a number");
+            // ids are whole numbers
+            if (pos < end && (bytes[pos] == '.' || bytes[pos] == 'e' || bytes[pos] == 'E')) throw invalid("Invalid id");
+            return negative ? -value : value;
+        }
+
+        /**
+         * Skips the value of an unknown field, up to the , or } after it. Only strings and nesting are looked at, the rest is not validated.
+         */
+        private void skipValue() throws JSONException {
+            int depth = 0;
+            while (true) {
+                if (pos >= end) throw invalid("Unterminated value");
+                byte c = bytes[pos];
+                if (c == '"') {
+                    skipString();
+                } else if (c == '{' || c == '[') {
+                    depth++;
+                    pos++;
+                } else if (c == '}' || c == ']') {
+                    if (depth == 0) return;
+                    depth--;
+                    pos++;
+                } else if (c == ',' && depth == 0) {
+                    return;
+                } else {
+                    pos++;
+                }
+            }
+        }
+
+        private void skipString() throws JSONException {
+            pos++;
+            while (pos < end) {
+                byte b = bytes[pos];
+                if (b == '"') {
+                    pos++;
+                    return;
+                }
+                pos += b == '\\' ? 2 : 1;
+            }
+            throw invalid("Unterminated string");
+        }
+
+        private void skipWhitespace() {
+            while (pos < end && (bytes[pos] == ' ' || bytes[pos] == '\n' || bytes[pos] == '\r' || bytes[pos] == '\t')) {
+                pos++;
+            }
+        }
+
+        private byte peek() throws JSONException {
+            if (pos >= end) throw invalid("Unexpected end");
+            return bytes[pos];
+        }
+
+        private byte next() throws JSONException {
+            byte b = peek();
+            pos++;
+            return b;
+        }
+
+        private void expect(char c) throws JSONException {
+            if (next() != c) throw invalid("Expected " + c);
+        }
+
+        private JSONException invalid(String reason) {
+            return new JSONException(reason + " at " + pos);
+        }
+    }
+
+    /**
+     * Writes JSON into a growing byte array, leaving room in front for the frame's length prefix.
+     */
+    private static class Writer {
+        private byte[] bytes;
+        private int pos;
+
+        Writer(int capacity) {
+            this.bytes = new byte[capacity];
+        }
+
+        void skip(int count) {
+            ensure(count);
+            pos += count;
+        }
+
+        Writer raw(byte b) {
+            ensure(1);
+            bytes[pos++] = b;
+            return this;
+        }
+
+        Writer raw(byte[] b) {
+            ensure(b.length);
+            System.arraycopy(b, 0, bytes, pos, b.length);
+            pos += b.length;
+            return this;
+        }
+
+        /**
+         * Writes a field name and the colon after it, with a comma in front unless it's the first field.
+         */
+        void field(int field, boolean first) {
+            if (!first) raw((byte) ',');
+            raw((byte) '"').raw(FIELD_NAMES[field]).raw((byte) '"').raw((byte) ':');
+        }
+
+        void number(long value) {
+            raw(Long.toString(value).getBytes(StandardCharsets.US_ASCII));
+        }
+
+        /**
+         * Writes a quoted string as UTF-8, escaping quotes, backslashes and control characters.
+         * Unpaired surrogates become '?', the same as String.getBytes does.
+         */
+        void string(String s) {
+            raw((byte) '"');
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c < 0x80) {
+                    if (c == '"' || c == '\\') {
+                        ensure(2);
+                        bytes[pos++] = '\\';
+                        bytes[pos++] = (byte) c;
+                    } else if (c < 0x20) {
+                        escapeControl(c);
+                    } else {
+                        ensure(1);
+                        bytes[pos++] = (byte) c;
+                    }
+                } else if (c < 0x800) {
+                    ensure(2);
+                    bytes[pos++] = (byte) (0xC0 | c >> 6);
+                    bytes[pos++] = (byte) (0x80 | c & 0x3F);
+                } else if (Character.isSurrogate(c)) {
+                    if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                        int cp = Character.toCodePoint(c, s.charAt(++i));
+                        ensure(4);
+                        bytes[pos++] = (byte) (0xF0 | cp >> 18);
+                        bytes[pos++] = (byte) (0x80 | cp >> 12 & 0x3F);
+                        bytes[pos++] = (byte) (0x80 | cp >> 6 & 0x3F);
+                        bytes[pos++] = (byte) (0x80 | cp & 0x3F);
+                    } else {
+                        raw((byte) '?');
+                    }
+                } else {
+                    ensure(3);
+                    bytes[pos++] = (byte) (0xE0 | c >> 12);
+                    bytes[pos++] = (byte) (0x80 | c >> 6 & 0x3F);
+                    bytes[pos++] = (byte) (0x80 | c & 0x3F);
+                }
+            }
+            raw((byte) '"');
+        }
+
+        private void escapeControl(char c) {
+            ensure(6);
+            bytes[pos++] = '\\';
+            switch (c) {
+            case '\b':
+                bytes[pos++] = 'b';
+                return;
+            case '\f':
+                bytes[pos++] = 'f';
+                return;
+            case '\n':
+                bytes[pos++] = 'n';
+                return;
+            case '\r':
+                bytes[pos++] = 'r';
+                return;
+            case '\t':
+                bytes[pos++] = 't';
+                return;
+            default:
+                bytes[pos++] = 'u';
+                bytes[pos++] = '0';
+                bytes[pos++] = '0';
+                bytes[pos++] = HEX[c >> 4];
+                bytes[pos++] = HEX[c & 0xF];
+            }
+        }
+
+        private void ensure(int count) {
+            if (pos + count > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, pos + count));
+            }
+        }
+
+        ByteBuffer toFrame() {
+            ByteBuffer frame = ByteBuffer.wrap(bytes, 0, pos);
+            frame.putInt(0, pos - PacketHelper.FRAME_HEADER_SIZE);
+            return frame;
+        }
+    }
+}
@@ -1,21 +1,25 @@
 package project;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Nullable;
@@ -25,24 +29,75 @@ import org.json.JSONException;
 import project.App.LogLevel;
 import project.PacketHelper.Packet;
 import project.PacketHelper.PacketType;
+import project.ServerMetrics.DropReason;
 
 public class Server {
     public final int PORT;
     public final String HOST;
     private final ServerSocketChannel serverSocket;
+    // only used to accept connections, every connection is then handed to one of the reactors
     private final Selector selector;
-    private final Map<SelectionKey, ClientStatus> clients;
-    private final List<MathRequest> requests;
-    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
-    private static final int HEARTBEAT_TIMEOUT = 5;
+    private final Reactor[] reactors;
+    // every connected client by name, across all reactors. claimed on CONNECT and freed by removeClient
+    private final ConcurrentHashMap<String, ClientStatus> names = new ConcurrentHashMap<String, ClientStatus>();
+    private int nextReactor;
+    // queued outbound bytes past which a connection stops being read from until its queue drains
+    private final int writeHighWater;
+    private final ExpressionCache expressionCache;
+    // buffers sockets are read into, each is only held for one read
+    private final BufferPool readBuffers;
+    // null if requests are evaluated on the reactor threads
+    @Nullable
+    private final WorkerPool workers;
+    // latency histograms and counters, including the write() calls made and frames written by them. every frame used to be its own write
+    private final ServerMetrics metrics;
+    private final int metricsInterval;
+    private final int metricsPort;
+    @Nullable
+    private volatile MetricsEndpoint metricsEndpoint;
+    // the packets sent most often, prebuilt so sending one only patches in the time and id
+    private final PacketHelper.Template heartbeatTemplate;
+    private final PacketHelper.Template ackTemplate;
+    // nanos without a packet from a client before it is sent a HEARTBEAT, and to answer it before it's dropped
+    private final long heartbeatInterval;
+    private final long heartbeatTimeout;
+    private volatile boolean running = true;
+    // heartbeat deadlines are checked this often
+    private static final long TIMER_TICK = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final int TIMER_SLOTS = 128;
 
     public Server(String host, int port) throws IOException {
+        this(host, port, new Options());
+    }
+
+    public Server(String host, int port, Options options) throws IOException {
         this.HOST = host;
         this.PORT = port;
+        this.heartbeatTemplate = new PacketHelper.Template(PacketType.HEARTBEAT, senderName(host, port));
+        this.ackTemplate = new PacketHelper.Template(PacketType.ACK, senderName(host, port));
         this.selector = Selector.open();
         this.serverSocket = java.nio.channels.ServerSocketChannel.open();
-        this.clients = new ConcurrentHashMap<SelectionKey, ClientStatus>();
-        this.requests = new ArrayList<MathRequest>();
+        if (options.reactors < 1) { throw new IllegalArgumentException("Server needs at least 1 reactor"); }
+        this.reactors = new Reactor[options.reactors];
+        for (int i = 0; i < reactors.length; i++) {
+            reactors[i] = new Reactor(i);
+        }
+        this.writeHighWater = options.writeHighWater;
+        if (options.heartbeatInterval < 1 || options.heartbeatTimeout < 1) { throw new IllegalArgumentException("Heartbeat interval and timeout must be positive"); }
+        this.heartbeatInterval = TimeUnit.MILLISECONDS.toNanos(options.heartbeatInterval);
+        this.heartbeatTimeout = TimeUnit.MILLISECONDS.toNanos(options.heartbeatTimeout);
+        this.readBuffers = Options.readBufferPool(options);
+        this.workers = options.workers > 0 ? new WorkerPool(options.workers, options.virtualWorkers, options.workerQueue, options.saturation) : null;
+        this.expressionCache = new ExpressionCache(options.cacheCapacity, options.cacheMaxBytes, options.cacheResults);
+        MathJit.setEnabled(options.jitEnabled);
+        MathJit.setThreshold(options.jitThreshold);
+        if (options.metricsInterval < 0) { throw new IllegalArgumentException("Metrics interval can't be negative"); }
+        this.metricsInterval = options.metricsInterval;
+        if (options.metricsPort < 0 || options.metricsPort > 65535) { throw new IllegalArgumentException("Invalid metrics port " + options.metricsPort); }
+        this.metricsPort = options.metricsPort;
+        // counts through the reactors rather than this, which isn't fully constructed yet
+        Reactor[] reactors = this.reactors;
+        this.metrics = new ServerMetrics(() -> Arrays.stream(reactors).mapToInt(Reactor::getClientCount).sum());
     }
 
     /**
@@ -66,19 +121,24 @@ public class Server {
     }
 
     /**
-     * Starts the server and initializes the server. Sends a heartbeat to all clients every HEARTBEAT_TIMEOUT seconds.
-     * Contains the main server loop that listens for incoming connections and reads incoming data from clients.
-     * Handles math requests from clients and sends back the result or an error message if the expression is invalid.
+     * Starts the server and initializes the server. Clients that go quiet for the heartbeat interval are sent a heartbeat.
+     * Starts the reactor threads, then runs the accept loop on the calling thread, handing every new connection to the next reactor in turn.
+     * Each reactor reads from its own connections and writes back their results, math requests are evaluated by the worker pool.
      */
     public void start() {
+        // up before the server accepts clients, so whatever sees the server up can scrape it
+        metricsEndpoint = MetricsEndpoint.startIfEnabled(HOST, metricsPort, metrics);
         // Server init
         init();
 
-        // Send HEARTBEAT to all clients every HEARTBEAT_TIMEOUT seconds
-        scheduler.scheduleAtFixedRate(() -> handleSendHeartbeat(), 0, 1, TimeUnit.SECONDS);
+        for (Reactor reactor : reactors) {
+            reactor.start();
+        }
+        App.log("Started " + reactors.length + " reactor(s)", LogLevel.INFO);
+        if (metricsInterval > 0) metrics.startDump(metricsInterval);
 
-        // Main Server Loop
-        while (true) {
+        // Accept Loop
+        while (running) {
             try {
                 selector.select();
                 Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
@@ -86,46 +146,180 @@ public class Server {
                     SelectionKey key = iterator.next();
                     if (key.isAcceptable()) {
                         addClient(key);
-                        iterator.remove();
-                    } else if (key.isReadable()) {
-                        read(key);
-                        iterator.remove();
                     }
+                    iterator.remove();
                 }
             } catch (IOException e) {
                 App.log("Exception in selector", LogLevel.ERROR);
             }
-            Iterator<MathRequest> iterator = requests.iterator();
-            while (iterator.hasNext()) {
-                MathRequest req = iterator.next();
-                try {
-                    double result = MathHelper.parse(req.getPacket().getContent());
-                    try {
-                        req.getClient().getSocket().write(PacketHelper.RESULT(this, ""+result).toBuffer());
-                    } catch (IOException e) {
-                        App.log(packetSendExceptionMessage(PacketType.RESULT, PacketType.MATH, req.getClient().getName()), LogLevel.WARN);
-                        clients.remove(req.getClient().getKey());
-                        req.getClient().getKey().cancel();
-                        req.getClient().tryCloseSocket();
-                    }
-                } catch (IllegalArgumentException e) {
-                    App.log("MATH request from '" + req.getClient().getName() + "' contains invalid expression!", LogLevel.WARN);
-                    try {
-                        req.getClient().getSocket().write(PacketHelper.RESULT(this, "Expression Invalid").toBuffer());
-                    } catch (IOException e1) {
-                        App.log(packetSendExceptionMessage(PacketType.RESULT, PacketType.MATH, req.getClient().getName()), LogLevel.WARN);
-                        clients.remove(req.getClient().getKey());
-                        req.getClient().getKey().cancel();
-                        req.getClient().tryCloseSocket();
-                    }
-                }
-                iterator.remove();
+        }
+        tryClose(serverSocket);
+        tryClose(selector);
+    }
+
+    /**
+     * Stops the server. The accept loop and the reactors finish their current iteration, then every connection is closed.
+     */
+    public void stop() {
+        running = false;
+        metrics.stopDump();
+        if (metricsEndpoint != null) metricsEndpoint.stop();
+        if (workers != null) workers.shutdown();
+        for (Reactor reactor : reactors) {
+            reactor.selector.wakeup();
+        }
+        selector.wakeup();
+    }
+
+    /**
+     * Queues a MATH or MATH_BATCH request for evaluation.
+     * Each client has its own queue that is worked through by at most one worker at a time, so results are sent back in the order the requests were received.
+     * If the worker pool is saturated and rejects the client's queue, every request in it is answered with an error instead.
+     *
+     * @param req the request to evaluate
+     */
+    private void queueMathRequest(MathRequest req) {
+        ClientStatus cs = req.getClient();
+        metrics.requestQueued();
+        // a worker is already going through this client's queue and will get to the request
+        if (!cs.queueRequest(req)) return;
+        if (workers == null) {
+            evaluateQueued(cs);
+        } else if (!workers.submit(() -> evaluateQueued(cs))) {
+            List<MathRequest> rejected = cs.takeQueuedRequests();
+            App.log("Worker pool is full. Rejecting " + rejected.size() + " request(s) from '" + cs.getName() + "'", LogLevel.WARN);
+            metrics.drop(DropReason.SERVER_BUSY, rejected.size());
+            metrics.requestDequeued(rejected.size());
+            for (MathRequest r : rejected) {
+                cs.getReactor().responses.add(new MathResponse(r, PacketHelper.RESULT(this, "Server Busy", r.getPacket().getId())));
+            }
+        }
+    }
+
+    /**
+     * Evaluates the queued requests of a client in order until its queue is empty, handing every response to the client's reactor.
+     * Runs on a worker, or on the client's reactor if there is no worker pool or the pool is running tasks on the caller.
+     *
+     * @param cs the client whose requests to evaluate
+     */
+    private void evaluateQueued(ClientStatus cs) {
+        for (MathRequest req = cs.nextQueuedRequest(); req != null; req = cs.nextQueuedRequest()) {
+            metrics.requestDequeued(1);
+            // client was dropped while its requests were waiting
+            if (!cs.getKey().isValid()) continue;
+            long start = System.nanoTime();
+            metrics.getQueueWait().record(start - req.getQueuedAt());
+            Packet response = evaluateRequest(req);
+            metrics.getEval().recordSince(start);
+            cs.getReactor().responses.add(new MathResponse(req, response));
+            cs.getReactor().selector.wakeup();
+        }
+    }
+
+    /**
+     * Evaluates a MATH or MATH_BATCH request.
+     *
+     * @param req the request to evaluate
+     * @return the RESULT or RESULT_BATCH to send back to the client
+     */
+    private Packet evaluateRequest(MathRequest req) {
+        return evaluateRequest(this, expressionCache, req.getPacket(), req.getClient().getName());
+    }
+
+    /**
+     * Evaluates a MATH or MATH_BATCH packet through the given expression cache. Shared by every server mode.
+     * The response carries the id of the request, if it had one.
+     *
+     * @param sender the server answering the request
+     * @param cache the expression cache to evaluate through
+     * @param p the MATH or MATH_BATCH packet
+     * @param clientName the name of the client that sent the request, for logging
+     * @return the RESULT or RESULT_BATCH to send back to the client
+     */
+    static Packet evaluateRequest(Object sender, ExpressionCache cache, Packet p, String clientName) {
+        if (p.getType() == PacketType.MATH_BATCH) {
+            return evaluateBatch(sender, cache, p, clientName);
+        }
+        try {
+            return PacketHelper.RESULT(sender, "" + evaluate(cache, p.getContent()), p.getId());
+        } catch (IllegalArgumentException e) {
+            App.log("MATH request from '" + clientName + "' contains invalid expression!", LogLevel.WARN);
+            return PacketHelper.RESULT(sender, "Expression Invalid", p.getId());
+        }
+    }
+
+    /**
+     * Writes every response the workers have finished so far for the clients of the given reactor.
+     * If an IOException occurs while sending a response, removes the client from the list of clients and cancels its key.
+     *
+     * @param reactor the reactor whose responses to write, called on its thread
+     */
+    private void writeResponses(Reactor reactor) {
+        for (MathResponse res = reactor.responses.poll(); res != null; res = reactor.responses.poll()) {
+            ClientStatus cs = res.getRequest().getClient();
+            if (!cs.getKey().isValid()) continue;
+            try {
+                send(cs.getKey(), res.getPacket());
+            } catch (IOException e) {
+                App.log(packetSendExceptionMessage(res.getPacket().getType(), res.getRequest().getPacket().getType(), cs.getName()), LogLevel.WARN);
+                metrics.drop(DropReason.IO_ERROR);
+                removeClient(cs);
+                cs.getKey().cancel();
+                cs.tryCloseSocket();
+            }
+        }
+    }
+
+    /**
+     * Evaluates every expression in a MATH_BATCH packet. The batch is parsed once and answered with a single RESULT_BATCH,
+     * with a result or an error for each expression in the same order as the request.
+     * If the batch itself can't be parsed, a RESULT with an error message is returned instead.
+     *
+     * @param sender the server answering the batch
+     * @param cache the expression cache to evaluate through
+     * @param p the MATH_BATCH packet
+     * @param clientName the name of the client that sent the batch
+     * @return the packet to send back to the client
+     */
+    private static Packet evaluateBatch(Object sender, ExpressionCache cache, Packet p, String clientName) {
+        List<PacketHelper.BatchItem> items;
+        try {
+            items = PacketHelper.parseBatch(p.getContent());
+        } catch (JSONException e) {
+            App.log("MATH_BATCH request from '" + clientName + "' is invalid!", LogLevel.WARN);
+            return PacketHelper.RESULT(sender, "Batch Invalid", p.getId());
+        }
+        List<PacketHelper.BatchResult> results = new ArrayList<PacketHelper.BatchResult>(items.size());
+        int invalid = 0;
+        for (PacketHelper.BatchItem item : items) {
+            try {
+                results.add(PacketHelper.BatchResult.ofValue(item.getId(), evaluate(cache, item.getExpression())));
+            } catch (IllegalArgumentException e) {
+                results.add(PacketHelper.BatchResult.ofError(item.getId(), "Expression Invalid"));
+                invalid++;
             }
         }
+        if (invalid > 0) {
+            App.log("MATH_BATCH request from '" + clientName + "' contains " + invalid + " invalid expression(s)!", LogLevel.WARN);
+        }
+        return PacketHelper.RESULT_BATCH(sender, results, p.getId());
+    }
+
+    /**
+     * Evaluates an expression through the expression cache.
+     *
+     * @param cache the expression cache
+     * @param expression the expression, may be null
+     * @return the result of the expression
+     * @throws IllegalArgumentException if the expression is missing or invalid
+     */
+    private static double evaluate(ExpressionCache cache, @Nullable String expression) throws IllegalArgumentException {
+        if (expression == null) { throw new IllegalArgumentException("Missing expression"); }
+        return cache.evaluate(expression);
     }
 
     /**
-     * Accepts a new client connection and registers it with the selector for read operations.
+     * Accepts a new client connection and hands it to the next reactor, which registers it with its selector for read operations.
      *
      * @param key the selection key for the server socket channel
      */
@@ -133,67 +327,161 @@ public class Server {
         try {
             ServerSocketChannel server = (ServerSocketChannel) key.channel();
             SocketChannel client = server.accept();
+            if (client == null) return;
             client.configureBlocking(false);
-            client.register(selector, SelectionKey.OP_READ);
+            // ACK and RESULT go out as separate small frames, Nagle would hold the RESULT back until the client ACKs the first one
+            client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            Reactor reactor = reactors[nextReactor];
+            nextReactor = (nextReactor + 1) % reactors.length;
+            reactor.addClient(client);
         } catch (IOException e) {
             App.log("Exception adding client", LogLevel.ERROR);
         }
     }
 
     /**
-     * Reads data from the client associated with the given SelectionKey.
-     * If an exception occurs while reading, the client is assumed to have disconnected and is removed from the list of clients.
-     * If the received packet is empty, it is ignored.
-     * If the received packet is not a valid JSON, the client is assumed to have sent an invalid packet and is removed from the list of clients.
-     * If the received packet is not from a known client and is not a CONNECT packet, the client is assumed to be unknown and is disconnected.
-     * If the received packet is from a known client but has an invalid name or timestamp, the client is disconnected.
-     * Otherwise, the packet is handled according to its type.
+     * Queues a packet on the connection of the given key. Everything queued for a connection during one iteration of its reactor
+     * is written at the end of the iteration with a single gathering write. Must be called on the connection's reactor thread.
      *
-     * @param key The SelectionKey associated with the client to read from.
+     * @param key the connection's selection key
+     * @param p the packet to send
+     * @throws IOException if the connection is closed
      */
-    private void read(SelectionKey key) {
-        ClientStatus cs = clients.get(key);
-        SocketChannel client = (SocketChannel) key.channel();
-        ByteBuffer buffer = ByteBuffer.allocate(2048);
+    private void send(SelectionKey key, Packet p) throws IOException {
+        if (!key.isValid()) { throw new IOException("Connection closed"); }
+        Connection connection = (Connection) key.attachment();
+        metrics.packetOut(p.getType());
+        if (connection.queue(p.toBuffer(connection.getCodec()))) {
+            connection.getReactor().dirty.add(key);
+        }
+    }
+
+    /**
+     * Queues a packet and writes the connection's queue right away, for packets like DISCONNECT that are followed by closing the connection.
+     * Whatever the socket doesn't take right away is lost.
+     *
+     * @param key the connection's selection key
+     * @param p the packet to send
+     * @throws IOException if the connection is closed or writing to it failed
+     */
+    private void sendNow(SelectionKey key, Packet p) throws IOException {
+        if (!key.isValid()) { throw new IOException("Connection closed"); }
+        Connection connection = (Connection) key.attachment();
+        connection.queue(p.toBuffer(connection.getCodec()));
+        metrics.packetOut(p.getType());
+        connection.flush(key, metrics);
+    }
+
+    /**
+     * Writes queued packets to a connection, either at the end of a reactor iteration or because its socket became writable again.
+     * If an exception occurs while writing, the client is assumed to have disconnected and is removed from the list of clients.
+     *
+     * @param reactor The reactor the client belongs to, called on its thread.
+     * @param key The SelectionKey associated with the client to write to.
+     */
+    private void flush(Reactor reactor, SelectionKey key) {
         try {
-            client.read(buffer);
+            ((Connection) key.attachment()).flush(key, metrics);
         } catch (IOException e) {
+            metrics.drop(DropReason.IO_ERROR);
+            ClientStatus cs = reactor.clients.get(key);
             if (cs != null) {
-                App.log("Exception reading from client '" + cs.getName() + "''. Assuming disconnect... Client was connected for " + cs.getTimeConnected().until(Instant.now(), ChronoUnit.SECONDS)
+                App.log("Exception writing to client '" + cs.getName() + "'. Assuming disconnect... Client was connected for " + cs.getTimeConnected().until(Instant.now(), ChronoUnit.SECONDS)
                         + " seconds", LogLevel.WARN);
-                clients.remove(key);
+                removeClient(cs);
             } else {
-                App.log("Exception reading from unknown client. Dropping...", LogLevel.WARN);
+                App.log("Exception writing to unknown client. Dropping...", LogLevel.WARN);
             }
             key.cancel();
-            tryCloseSocket(client);
-            return;
+            tryCloseSocket((SocketChannel) key.channel());
         }
+    }
 
-        // ignore empty packets
-        if (new String(buffer.array()).trim().isEmpty()) { return; }
-
-        // parse packet
-        Packet p;
+    /**
+     * Reads data from the client associated with the given SelectionKey and handles every complete packet it contains.
+     * If an exception occurs while reading, or the client closed the connection, the client is assumed to have disconnected and is removed from the list of clients.
+     * Bytes are accumulated in the connection's FrameDecoder, so a read may contain part of a packet, one packet, or several.
+     * If a received frame is not a valid packet, the client is assumed to have sent an invalid packet and is removed from the list of clients.
+     *
+     * @param reactor The reactor the client belongs to, called on its thread.
+     * @param key The SelectionKey associated with the client to read from.
+     */
+    private void read(Reactor reactor, SelectionKey key) {
+        SocketChannel client = (SocketChannel) key.channel();
+        PacketHelper.FrameDecoder decoder = ((Connection) key.attachment()).getDecoder();
+        // the decoder copies what was read, so the buffer goes straight back to the pool
+        ByteBuffer buffer = readBuffers.acquire();
+        int read;
         try {
-            p = PacketHelper.parse(buffer);
-        } catch (JSONException e) {
+            read = client.read(buffer);
+        } catch (IOException e) {
+            read = -1;
+        }
+        if (read > 0) {
+            metrics.bytesIn(read);
+            decoder.feed(buffer.flip());
+        }
+        readBuffers.release(buffer);
+        if (read < 0) {
+            metrics.drop(DropReason.IO_ERROR);
+            ClientStatus cs = reactor.clients.get(key);
             if (cs != null) {
-                App.log(invalidPacketExceptionMessage(null, cs), LogLevel.WARN);
-                clients.remove(key);
+                App.log("Exception reading from client '" + cs.getName() + "''. Assuming disconnect... Client was connected for " + cs.getTimeConnected().until(Instant.now(), ChronoUnit.SECONDS)
+                        + " seconds", LogLevel.WARN);
+                removeClient(cs);
             } else {
-                App.log(invalidPacketExceptionMessage(null, null), LogLevel.WARN);
+                App.log("Exception reading from unknown client. Dropping...", LogLevel.WARN);
             }
             key.cancel();
             tryCloseSocket(client);
             return;
         }
 
+        // parse and handle every complete packet, stopping if one of them got the client dropped
+        while (key.isValid()) {
+            try {
+                Packet p = decoder.next();
+                if (p == null) return;
+                handlePacket(p, reactor, key, client);
+            } catch (JSONException e) {
+                metrics.drop(DropReason.INVALID_PACKET);
+                ClientStatus cs = reactor.clients.get(key);
+                if (cs != null) {
+                    App.log(invalidPacketExceptionMessage(null, cs), LogLevel.WARN);
+                    removeClient(cs);
+                } else {
+                    App.log(invalidPacketExceptionMessage(null, null), LogLevel.WARN);
+                }
+                key.cancel();
+                tryCloseSocket(client);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Handles a single packet received from a client.
+     * If the packet is not from a known client and is not a CONNECT packet, the client is assumed to be unknown and is disconnected.
+     * If the packet is from a known client but has an invalid name, the client is disconnected.
+     * Otherwise, the packet is handled according to its type.
+     *
+     * @param p The packet received.
+     * @param reactor The reactor the client belongs to.
+     * @param key The SelectionKey associated with the client.
+     * @param client The client's SocketChannel.
+     */
+    private void handlePacket(Packet p, Reactor reactor, SelectionKey key, SocketChannel client) {
+        metrics.packetIn(p.getType());
+        ClientStatus cs = reactor.clients.get(key);
+        // any packet shows the client is alive, its heartbeat timer looks at this when it next expires
+        if (cs != null) cs.setLastActivity(reactor.now);
+
         // check if client is known
         if (cs == null && p.getType() != PacketType.CONNECT) {
             App.log("Received packet from unknown client '" + p.getSender() + "'! Sending DISCONNECT...", LogLevel.WARN);
+            metrics.drop(DropReason.NOT_CONNECTED);
             try {
-                client.write(PacketHelper.DISCONNECT(this, "Client has not connected. Dropping client...").toBuffer());
+                sendNow(key, PacketHelper.DISCONNECT(this, "Client has not connected. Dropping client..."));
             } catch (IOException e) {
                 App.log(packetSendExceptionMessage(PacketType.DISCONNECT, null, p.getSender()), LogLevel.WARN);
             }
@@ -208,29 +496,15 @@ public class Server {
                 App.log("Received packet from '" + p.getSender() + "' but expected packet from '" + cs.getName() + "'! Dropping client... Client was connected for "
                         + cs.getTimeConnected().until(Instant.now(), ChronoUnit.SECONDS) + " seconds", LogLevel.WARN);
                 try {
-                    client.write(PacketHelper.DISCONNECT(this, "Client sent packet with invalid name. Dropping client...").toBuffer());
+                    sendNow(key, PacketHelper.DISCONNECT(this, "Client sent packet with invalid name. Dropping client..."));
                 } catch (IOException e) {
                     App.log(packetSendExceptionMessage(PacketType.DISCONNECT, null, cs.getName()), LogLevel.WARN);
                 }
-                clients.remove(key);
+                metrics.drop(DropReason.WRONG_SENDER);
+                removeClient(cs);
                 key.cancel();
                 tryCloseSocket(client);
                 return;
-
-                // check if packet timestamp is valid
-                //nvm this doint work
-            } else if (p.getTimestamp().isAfter(Instant.now())) {
-                // App.log("Received packet from '" + p.getSender() + "' with invalid timestamp! Dropping client... Client was connected for "
-                //         + cs.getTimeConnected().until(Instant.now(), ChronoUnit.SECONDS) + " seconds", LogLevel.WARN);
-                // try {
-                //     client.write(PacketHelper.DISCONNECT(this, "Client sent packet with invalid timestamp. Dropping client...").toBuffer());
-                // } catch (IOException e) {
-                //     App.log(packetSendExceptionMessage(PacketType.DISCONNECT, null, cs.getName()), LogLevel.WARN);
-                // }
-                // clients.remove(key);
-                // key.cancel();
-                // tryCloseSocket(client);
-                // return;
             }
         }
 
@@ -240,7 +514,7 @@ public class Server {
         
         switch (p.getType()) {
         case CONNECT:
-            handleConnect(p, key, client);
+            handleConnect(p, reactor, key, client);
             return;
         case DISCONNECT:
             handleDisconnect(p, cs);
@@ -252,69 +526,141 @@ public class Server {
             handleAck(p, cs);
             return;
         case MATH:
+        case MATH_BATCH:
             handleMath(p, cs);
             return;
         case RESULT:
+        case RESULT_BATCH:
             handleResult(p, cs);
             return;
         }
     }
 
     /**
-     * Sends a heartbeat to all connected clients and handles the response.
-     * If a client does not respond to the heartbeat within a certain timeout, it is dropped.
+     * Handles a client's heartbeat timer expiring. Timers are only ever moved here, not when packets arrive,
+     * so a busy client costs one timer per heartbeat interval no matter how many packets it sends.
+     * A client that has been quiet for the heartbeat interval is sent a heartbeat, and dropped if nothing arrives within the heartbeat timeout.
+     * Clients that don't finish connecting within the heartbeat interval are dropped too.
+     *
+     * @param reactor the reactor the client belongs to, called on its thread
+     * @param cs the client
      */
-    private void handleSendHeartbeat() {
-        for (ClientStatus cs : clients.values()) {
-            // client is not connected yet
-            if (!cs.isConnectionAck())
-                continue;
-            // client doesnt need a heartbeat yet
-            if (!cs.needsHeartbeat()) {
-                cs.incHeartbeatTimeout();
-            // client needs a heartbeat and one has not been sent yet
-            } else if (cs.needsHeartbeat() && !cs.getHeartbeatSent()) {
-                App.log("Sending HEARTBEAT to " + cs.getName(), LogLevel.INFO);
-                cs.setHeartbeatSent();
-                try {
-                    cs.getSocket().write(PacketHelper.HEARTBEAT(this).toBuffer());
-                } catch (IOException e) {
-                    App.log(packetSendExceptionMessage(PacketType.HEARTBEAT, null, cs.getName()), LogLevel.WARN);
-                    clients.remove(cs.getKey());
-                    cs.getKey().cancel();
-                    cs.tryCloseSocket();
-                }
-            // client needs a heartbeat and one has been sent
-            } else if (cs.needsHeartbeat() && cs.getHeartbeatSent()) {
-                App.log("Client '" + cs.getName() + "' has not responded to HEARTBEAT after " + HEARTBEAT_TIMEOUT + " seconds. Dropping client. Client was connected for "
-                        + clients.get(cs.getKey()).getTimeConnected().until(Instant.now(), ChronoUnit.SECONDS) + " seconds", LogLevel.INFO);
-                try {
-                    cs.getSocket().write(PacketHelper.DISCONNECT(this, "Client has not responded to HEARTBEAT after " + HEARTBEAT_TIMEOUT + " seconds. Dropping client...").toBuffer());
-                } catch (IOException e) {
-                    App.log(packetSendExceptionMessage(PacketType.DISCONNECT, null, cs.getName()), LogLevel.WARN);
-                }
-                clients.remove(cs.getKey());
+    private void handleHeartbeatTimer(Reactor reactor, ClientStatus cs) {
+        // client is gone, its timer just goes away with it
+        if (!cs.getKey().isValid() || reactor.clients.get(cs.getKey()) != cs)
+            return;
+        long now = reactor.now;
+        long idleDeadline = cs.getLastActivity() + heartbeatInterval;
+        // client is not connected yet
+        if (!cs.isConnectionAck()) {
+            if (now - idleDeadline < 0) {
+                reactor.timers.schedule(cs, idleDeadline);
+                return;
+            }
+            App.log("Client '" + cs.getName() + "' has not acknowledged its connection. Dropping client...", LogLevel.INFO);
+            dropForTimeout(cs, DropReason.CONNECT_TIMEOUT, "Client has not acknowledged its connection. Dropping client...");
+        // client sent something since the heartbeat, so it's alive
+        } else if (cs.getHeartbeatSent() && cs.getLastActivity() - cs.getHeartbeatSentTime() >= 0) {
+            cs.heartbeatAck();
+            reactor.timers.schedule(cs, idleDeadline);
+        // client has not answered the heartbeat
+        } else if (cs.getHeartbeatSent()) {
+            App.log("Client '" + cs.getName() + "' has not responded to HEARTBEAT after " + TimeUnit.NANOSECONDS.toMillis(heartbeatTimeout) + " ms. Dropping client. Client was connected for "
+                    + cs.getTimeConnected().until(Instant.now(), ChronoUnit.SECONDS) + " seconds", LogLevel.INFO);
+            dropForTimeout(cs, DropReason.HEARTBEAT_TIMEOUT, "Client has not responded to HEARTBEAT after " + TimeUnit.NANOSECONDS.toMillis(heartbeatTimeout) + " ms. Dropping client...");
+        // client doesnt need a heartbeat yet
+        } else if (now - idleDeadline < 0) {
+            reactor.timers.schedule(cs, idleDeadline);
+        // client has been quiet for the whole interval
+        } else {
+            App.log(() -> "Sending HEARTBEAT to " + cs.getName(), LogLevel.DEBUG);
+            cs.setHeartbeatSent(now);
+            reactor.timers.schedule(cs, now + heartbeatTimeout);
+            try {
+                send(cs.getKey(), heartbeatTemplate.packet());
+            } catch (IOException e) {
+                App.log(packetSendExceptionMessage(PacketType.HEARTBEAT, null, cs.getName()), LogLevel.WARN);
+                metrics.drop(DropReason.IO_ERROR);
+                removeClient(cs);
                 cs.getKey().cancel();
                 cs.tryCloseSocket();
             }
         }
     }
 
+    /**
+     * Removes a client from its reactor and frees its name. Every path that drops a connected client goes through here,
+     * the caller still cancels the key and closes the socket.
+     *
+     * @param cs the client to remove
+     */
+    private void removeClient(ClientStatus cs) {
+        cs.getReactor().clients.remove(cs.getKey(), cs);
+        releaseName(cs);
+    }
+
+    /**
+     * Claims a client's name in the name index, in one step so reactors connecting clients at the same time can't both get it.
+     *
+     * @param cs the client
+     * @return true if the name was free and now belongs to the client
+     */
+    boolean claimName(ClientStatus cs) {
+        return names.putIfAbsent(cs.getName(), cs) == null;
+    }
+
+    /**
+     * Frees a client's name, only if the client still holds it.
+     *
+     * @param cs the client
+     */
+    void releaseName(ClientStatus cs) {
+        names.remove(cs.getName(), cs);
+    }
+
+    /**
+     * Sends a DISCONNECT with the given reason to a client that timed out and drops it.
+     */
+    private void dropForTimeout(ClientStatus cs, DropReason dropReason, String reason) {
+        metrics.drop(dropReason);
+        try {
+            sendNow(cs.getKey(), PacketHelper.DISCONNECT(this, reason));
+        } catch (IOException e) {
+            App.log(packetSendExceptionMessage(PacketType.DISCONNECT, null, cs.getName()), LogLevel.WARN);
+        }
+        removeClient(cs);
+        cs.getKey().cancel();
+        cs.tryCloseSocket();
+    }
+
     /**
      * Handles a CONNECT packet received from a client.
      * If a client with the same name is already connected, sends a DISCONNECT packet to the new client and closes the connection.
      * Otherwise, adds the client to the list of connected clients and sends an ACK packet back to the client.
      * 
      * @param p The CONNECT packet received from the client.
+     * @param reactor The reactor the client belongs to.
      * @param key The SelectionKey associated with the client's SocketChannel.
      * @param client The client's SocketChannel.
      */
-    private void handleConnect(Packet p, SelectionKey key, SocketChannel client) {
-        // check if client with same name already connected and send DISCONNECT if so
-        if (clients.values().stream().anyMatch(cs -> cs.getName().equals(p.getSender()))) {
+    private void handleConnect(Packet p, Reactor reactor, SelectionKey key, SocketChannel client) {
+        // check if client with same name already connected to any reactor and add the client if not.
+        // reactors handle CONNECTs in parallel, so the name is claimed in one step through the name index
+        ClientStatus cs = new ClientStatus(p.getSender(), p.getTimestamp(), key, reactor, reactor.now);
+        // set if the client already sent a CONNECT before
+        ClientStatus existing = reactor.clients.get(key);
+        boolean duplicate = !claimName(cs);
+        if (!duplicate) {
+            if (existing != null) releaseName(existing);
+            reactor.clients.put(key, cs);
+        }
+        // send DISCONNECT if the name is taken
+        if (duplicate) {
+            if (existing != null) removeClient(existing);
             App.log("Received CONNECT from client '" + p.getSender() + "' but client with same name already connected. Ignoring...", LogLevel.WARN);
+            metrics.drop(DropReason.DUPLICATE_NAME);
             try {
-                client.write(PacketHelper.DISCONNECT(this, "Client with same name already connected. Change name and reconnect.").toBuffer());
+                sendNow(key, PacketHelper.DISCONNECT(this, "Client with same name already connected. Change name and reconnect."));
             } catch (IOException e) {
                 App.log(packetSendExceptionMessage(PacketType.DISCONNECT, PacketType.CONNECT, p.getSender()), LogLevel.WARN);
             }
@@ -322,15 +668,18 @@ public class Server {
             key.cancel();
             return;
         }
-        // add client to list of connected clients and send ACK
-        ClientStatus cs = new ClientStatus(p.getSender(), p.getTimestamp(), key);
-        clients.put(key, cs);
-        App.log("Received CONNECT from '" + cs.getName() + "'", LogLevel.INFO);
+        // the client has until the heartbeat interval is up to send its ACK
+        reactor.timers.schedule(cs, reactor.now + heartbeatInterval);
+        // client was added to list of connected clients, send ACK. it still goes out as JSON, everything after it uses the codec the client asked for
+        PacketHelper.Codec codec = PacketHelper.codecOf(p);
+        App.log("Received CONNECT from '" + cs.getName() + "'" + (codec != PacketHelper.Codec.JSON ? " using codec " + codec : ""), LogLevel.INFO);
         try {
-            cs.getSocket().write(PacketHelper.ACK(this).toBuffer());
+            send(cs.getKey(), PacketHelper.ACK(this, codec));
+            ((Connection) key.attachment()).setCodec(codec);
         } catch (IOException e) {
             App.log(packetSendExceptionMessage(PacketType.ACK, PacketType.CONNECT, cs.getName()), LogLevel.WARN);
-            clients.remove(cs.getKey());
+            metrics.drop(DropReason.IO_ERROR);
+            removeClient(cs);
             key.cancel();
             cs.tryCloseSocket();
         }
@@ -345,23 +694,24 @@ public class Server {
      */
     private void handleDisconnect(Packet p, ClientStatus cs) {
         App.log("Received DISCONNECT from '" + cs.getName() + "' with reason '" + p.getContent() + "'. Client was connected for "
-                + clients.get(cs.getKey()).getTimeConnected().until(Instant.now(), ChronoUnit.SECONDS) + " seconds", LogLevel.INFO);
-        clients.remove(cs.getKey());
+                + cs.getTimeConnected().until(Instant.now(), ChronoUnit.SECONDS) + " seconds", LogLevel.INFO);
+        metrics.drop(DropReason.CLIENT_DISCONNECT);
+        removeClient(cs);
         cs.getKey().cancel();
         cs.tryCloseSocket();
     }
 
     /**
      * Handles a heartbeat packet from a client.
-     * If the client needs a heartbeat, logs the receipt of the heartbeat and sends an acknowledgement.
-     * If the client does not need a heartbeat, logs the receipt of the heartbeat with a warning.
+     * If the client was sent a heartbeat, logs the receipt of the heartbeat and marks it as answered.
+     * If the client was not sent a heartbeat, logs the receipt of the heartbeat with a warning.
      * 
      * @param p the heartbeat packet received from the client
      * @param cs the status of the client
      */
     private void handleHeartbeat(Packet p, ClientStatus cs) {
-        if (cs.needsHeartbeat()) {
-            App.log("Received HEARTBEAT from '" + cs.getName() + "'", LogLevel.INFO);
+        if (cs.getHeartbeatSent()) {
+            App.log(() -> "Received HEARTBEAT from '" + cs.getName() + "'", LogLevel.DEBUG);
             cs.heartbeatAck();
         } else {
             App.log("Received HEARTBEAT from '" + cs.getName() + "' but no HEARTBEAT needed", LogLevel.WARN);
@@ -386,44 +736,47 @@ public class Server {
     }
 
     /**
-     * Handles a math packet received from a client.
-     * Sends an ACK packet to the client and adds the math request to the request queue.
+     * Handles a MATH or MATH_BATCH packet received from a client.
+     * Sends an ACK packet carrying the request id to the client and adds the math request to the client's request queue.
+     * Requests are answered in the order they arrive, so a client may send several before waiting for any results.
      * If an IOException occurs while sending the ACK packet, removes the client from the list of clients and cancels its key.
      * 
      * @param p the math packet received from the client
      * @param cs the client status object associated with the client
      */
     private void handleMath(Packet p, ClientStatus cs) {
-        App.log("Received MATH from '" + cs.getName() + "'", LogLevel.INFO);
+        App.log(() -> "Received " + p.getType() + (p.hasId() ? " #" + p.getId() : "") + " from '" + cs.getName() + "'", LogLevel.DEBUG);
         try {
-            cs.getSocket().write(PacketHelper.ACK(this).toBuffer());
+            send(cs.getKey(), ackTemplate.packet(p.getId()));
         } catch (IOException e) {
-            App.log(packetSendExceptionMessage(PacketType.ACK, PacketType.MATH, cs.getName()), LogLevel.WARN);
-            clients.remove(cs.getKey());
+            App.log(packetSendExceptionMessage(PacketType.ACK, p.getType(), cs.getName()), LogLevel.WARN);
+            metrics.drop(DropReason.IO_ERROR);
+            removeClient(cs);
             cs.getKey().cancel();
             cs.tryCloseSocket();
             return;
         }
 
         // only add request if ACK was sent
-        requests.add(new MathRequest(p, cs));
+        queueMathRequest(new MathRequest(p, cs));
     }
 
     /**
-     * Handles the RESULT packet received from the client and removes the client from the server.
-     * A client should not send a RESULT packet.
+     * Handles a RESULT or RESULT_BATCH packet received from the client and removes the client from the server.
+     * A client should not send either.
      * 
      * @param p The packet received from the client.
      * @param cs The status of the client.
      */
     private void handleResult(Packet p, ClientStatus cs) {
-        App.log(invalidPacketExceptionMessage(PacketType.RESULT, cs), LogLevel.WARN);
+        App.log(invalidPacketExceptionMessage(p.getType(), cs), LogLevel.WARN);
+        metrics.drop(DropReason.INVALID_PACKET);
         try {
-            cs.getSocket().write(PacketHelper.DISCONNECT(this, "Client dropped due to invalid " + PacketType.RESULT + " sent").toBuffer());
+            sendNow(cs.getKey(), PacketHelper.DISCONNECT(this, "Client dropped due to invalid " + p.getType() + " sent"));
         } catch (IOException e) {
             App.log(packetSendExceptionMessage(PacketType.DISCONNECT, null, cs.getName()), LogLevel.WARN);
         }
-        clients.remove(cs.getKey());
+        removeClient(cs);
         cs.getKey().cancel();
         cs.tryCloseSocket();
     }
@@ -434,8 +787,17 @@ public class Server {
      * @param socket the SocketChannel to be closed
      */
     private void tryCloseSocket(SocketChannel socket) {
+        tryClose(socket);
+    }
+
+    /**
+     * Closes the given channel or selector, ignoring any exception.
+     *
+     * @param closeable the thing to be closed
+     */
+    static void tryClose(Closeable closeable) {
         try {
-            socket.close();
+            closeable.close();
         } catch (IOException e) {
             // do nothing, doesn't matter will be closed anyway
         }
@@ -449,7 +811,7 @@ public class Server {
      * @param receiver the intended recipient of the failed packet
      * @return a string containing the exception message
      */
-    private static String packetSendExceptionMessage(PacketType sendType, @Nullable PacketType forType, String receiver) {
+    static String packetSendExceptionMessage(PacketType sendType, @Nullable PacketType forType, String receiver) {
         return "Exception sending " + sendType + (forType != null ? " for " + forType : "") + " to '" + receiver + "'! Assuming disconnect";
     }
 
@@ -465,9 +827,291 @@ public class Server {
                 + "! Dropping client. Client was connected for " + (cs != null ? cs.getTimeConnected().until(Instant.now(), ChronoUnit.SECONDS) : "UNKNOWN") + " seconds";
     }
 
+    public ExpressionCache getExpressionCache() { return expressionCache; }
+
+    public BufferPool getReadBufferPool() { return readBuffers; }
+
+    @Nullable
+    public WorkerPool getWorkerPool() { return workers; }
+
+    /**
+     * @return the number of write calls made to client sockets
+     */
+    public long getWriteCalls() { return metrics.getWriteCalls(); }
+
+    /**
+     * @return the number of frames written to client sockets
+     */
+    public long getFramesWritten() { return metrics.getFramesWritten(); }
+
+    /**
+     * @return the number of write calls saved by gathering several frames into one write, compared to a write per frame
+     */
+    public long getWriteCallsSaved() { return Math.max(0, metrics.getFramesWritten() - metrics.getWriteCalls()); }
+
+    public ServerMetrics getMetrics() { return metrics; }
+
+    public int getReactorCount() { return reactors.length; }
+
+    /**
+     * @return the number of connected clients across all reactors
+     */
+    public int getClientCount() {
+        return Arrays.stream(reactors).mapToInt(Reactor::getClientCount).sum();
+    }
+
     @Override
     public String toString() {
-        return "Server/" + HOST + ":" + PORT;
+        return senderName(HOST, PORT);
+    }
+
+    /**
+     * @return the name a server on the given address sends packets under
+     */
+    static String senderName(String host, int port) {
+        return "Server/" + host + ":" + port;
+    }
+
+    /**
+     * Tunable server settings. The defaults are used for anything not given on the command line.
+     */
+    public static class Options {
+        // max number of compiled expressions kept in the expression cache
+        public int cacheCapacity = 1024;
+        // max estimated memory used by the expression cache
+        public long cacheMaxBytes = 16L * 1024 * 1024;
+        // whether to also cache the results of constant expressions
+        public boolean cacheResults = false;
+        // whether to generate code for hot expressions, and how many evaluations make an expression hot
+        public boolean jitEnabled = true;
+        public int jitThreshold = 10_000;
+        // number of threads evaluating requests, 0 to evaluate on the reactor threads
+        public int workers = Runtime.getRuntime().availableProcessors();
+        // run every evaluation on its own virtual thread instead of a fixed pool
+        public boolean virtualWorkers = false;
+        // how many clients may wait for a worker before the pool is saturated
+        public int workerQueue = 1024;
+        public WorkerPool.Saturation saturation = WorkerPool.Saturation.REJECT;
+        // number of threads each running a selector for their share of the connections
+        public int reactors = Runtime.getRuntime().availableProcessors();
+        // bytes queued for a client that can't keep up before the server stops reading its requests
+        public int writeHighWater = 1024 * 1024;
+        // milliseconds without any packet from a client before it is sent a HEARTBEAT, and to answer it before it's dropped
+        public int heartbeatInterval = 5000;
+        public int heartbeatTimeout = 1000;
+        // size of the buffers sockets are read into, and how many of them are pooled at most
+        public int readBufferSize = 16 * 1024;
+        public int readBuffers = 4096;
+        // seconds between logging a metrics snapshot, 0 to not log them
+        public int metricsInterval = 0;
+        // port to serve /metrics on for Prometheus, 0 for none
+        public int metricsPort = 0;
+
+        // pooled buffers are allocated this many at a time
+        private static final int READ_BUFFERS_PER_SLAB = 64;
+
+        /**
+         * @return a new pool of read buffers sized as given in the options
+         */
+        static BufferPool readBufferPool(Options options) {
+            return new BufferPool(options.readBufferSize, READ_BUFFERS_PER_SLAB, (options.readBuffers + READ_BUFFERS_PER_SLAB - 1) / READ_BUFFERS_PER_SLAB);
+        }
+    }
+
+    /**
+     * The state of one connection, attached to its selection key: the decoder for incoming frames and the queue of outgoing ones.
+     * Outgoing frames are queued and written together with one gathering write, so an ACK and a RESULT or a burst of results
+     * cost one write call instead of one each. Frames that the socket doesn't take right away stay queued and OP_WRITE is set until they are written.
+     * Once more than the high-water mark is queued, OP_READ is cleared until the queue has drained,
+     * so a client that doesn't read its results can't make the server buffer without bound.
+     * Only touched by the connection's reactor thread.
+     */
+    private static class Connection {
+        // max number of frames handed to a single write call
+        private static final int MAX_GATHER = 64;
+
+        private final PacketHelper.FrameDecoder decoder = new PacketHelper.FrameDecoder();
+        private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<ByteBuffer>();
+        private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+        private final Reactor reactor;
+        private final int highWater;
+        private long queuedBytes;
+        private boolean readPaused;
+        // whether the connection is on its reactor's list of connections to flush
+        private boolean dirty;
+
+        Connection(Reactor reactor, int highWater) {
+            this.reactor = reactor;
+            this.highWater = highWater;
+        }
+
+        public PacketHelper.FrameDecoder getDecoder() { return decoder; }
+
+        public PacketHelper.Codec getCodec() { return decoder.getCodec(); }
+
+        /**
+         * Switches the codec packets are encoded and decoded with, starting with the next packet either way.
+         */
+        public void setCodec(PacketHelper.Codec codec) { decoder.setCodec(codec); }
+
+        public Reactor getReactor() { return reactor; }
+
+        /**
+         * Queues a frame to be written by the next flush.
+         *
+         * @return true if the connection wasn't waiting for a flush yet and has to be added to its reactor's list
+         */
+        public boolean queue(ByteBuffer frame) {
+            outbound.add(frame);
+            queuedBytes += frame.remaining();
+            if (dirty) return false;
+            dirty = true;
+            return true;
+        }
+
+        /**
+         * Writes queued frames until the queue is empty or the socket's send buffer is full, and updates the interest ops to match.
+         *
+         * @param metrics records each write call and the frames it completed
+         * @return true if everything queued has been written
+         * @throws IOException if the connection is closed or writing to it failed
+         */
+        public boolean flush(SelectionKey key, ServerMetrics metrics) throws IOException {
+            dirty = false;
+            SocketChannel socket = (SocketChannel) key.channel();
+            while (!outbound.isEmpty()) {
+                int count = 0;
+                for (ByteBuffer frame : outbound) {
+                    gather[count++] = frame;
+                    if (count == gather.length) break;
+                }
+                long start = System.nanoTime();
+                long written = socket.write(gather, 0, count);
+                queuedBytes -= written;
+                Arrays.fill(gather, 0, count, null);
+                int done = 0;
+                while (!outbound.isEmpty() && !outbound.peek().hasRemaining()) {
+                    outbound.poll();
+                    done++;
+                }
+                metrics.write(start, written, done);
+                // partial write, the send buffer is full
+                if (done < count) break;
+            }
+            try {
+                if (outbound.isEmpty()) {
+                    // drained, stop watching for OP_WRITE and resume reading if it was paused
+                    readPaused = false;
+                    key.interestOps(SelectionKey.OP_READ);
+                    return true;
+                }
+                if (queuedBytes > highWater) readPaused = true;
+                key.interestOps(readPaused ? SelectionKey.OP_WRITE : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            } catch (CancelledKeyException e) {
+                throw new IOException("Connection closed", e);
+            }
+            return false;
+        }
+
+        /**
+         * @return the number of bytes waiting to be written
+         */
+        public long getQueuedBytes() { return queuedBytes; }
+
+        public boolean isReadPaused() { return readPaused; }
+    }
+
+    /**
+     * An I/O thread with its own selector, serving the connections the acceptor hands it.
+     * Connections stay on the reactor they were given to, so everything about a connection is read and written by one thread.
+     * Other threads hand work to a reactor through its queues, like the workers their finished responses.
+     * Packets sent during an iteration are written at its end, with one gathering write per connection.
+     * Each reactor keeps its clients' heartbeat timers in its own timing wheel, and wakes up for every tick of it.
+     */
+    private class Reactor extends Thread {
+        private final Selector selector;
+        // this reactor's shard of the connected clients
+        private final Map<SelectionKey, ClientStatus> clients;
+        // connections accepted but not registered with the selector yet
+        private final ConcurrentLinkedQueue<SocketChannel> newClients;
+        // responses evaluated by the workers, waiting for this reactor to write them
+        private final ConcurrentLinkedQueue<MathResponse> responses;
+        // heartbeat timers of this reactor's clients
+        private final TimingWheel<ClientStatus> timers;
+        // System.nanoTime() as of the start of the current iteration
+        private long now;
+        // connections with packets queued since the last flush. only used by this reactor
+        private final ArrayDeque<SelectionKey> dirty;
+
+        Reactor(int id) throws IOException {
+            super("reactor-" + id);
+            this.selector = Selector.open();
+            this.clients = new ConcurrentHashMap<SelectionKey, ClientStatus>();
+            this.newClients = new ConcurrentLinkedQueue<SocketChannel>();
+            this.responses = new ConcurrentLinkedQueue<MathResponse>();
+            this.dirty = new ArrayDeque<SelectionKey>();
+            this.now = System.nanoTime();
+            this.timers = new TimingWheel<ClientStatus>(TIMER_TICK, TIMER_SLOTS, now);
+        }
+
+        /**
+         * Hands a new connection to this reactor. It is registered by the reactor thread itself,
+         * since registering blocks while another thread is selecting on the same selector.
+         *
+         * @param client the accepted connection, already non blocking
+         */
+        void addClient(SocketChannel client) {
+            newClients.add(client);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(timers.nanosUntilNextTick(now))));
+                    now = System.nanoTime();
+                    for (SocketChannel client = newClients.poll(); client != null; client = newClients.poll()) {
+                        try {
+                            client.register(selector, SelectionKey.OP_READ, new Connection(this, writeHighWater));
+                        } catch (IOException e) {
+                            App.log("Exception adding client", LogLevel.ERROR);
+                            tryCloseSocket(client);
+                        }
+                    }
+                    Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                    while (iterator.hasNext()) {
+                        SelectionKey key = iterator.next();
+                        if (key.isValid() && key.isWritable()) {
+                            flush(this, key);
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            read(this, key);
+                        }
+                        iterator.remove();
+                    }
+                } catch (IOException e) {
+                    App.log("Exception in selector", LogLevel.ERROR);
+                }
+                writeResponses(this);
+                timers.advance(now, cs -> handleHeartbeatTimer(this, cs));
+                // one gathering write for everything sent to each connection during this iteration
+                for (SelectionKey key = dirty.poll(); key != null; key = dirty.poll()) {
+                    if (key.isValid()) {
+                        flush(this, key);
+                    }
+                }
+            }
+            for (SelectionKey key : selector.keys()) {
+                tryClose(key.channel());
+            }
+            tryClose(selector);
+        }
+
+        /**
+         * @return the number of clients connected through this reactor
+         */
+        int getClientCount() { return clients.size(); }
     }
 
     /**
@@ -475,18 +1119,26 @@ public class Server {
      * It contains information such as the client's name, connection acknowledgement status,
      * heartbeat timeout, heartbeat sent status, selection key, time of connection, and socket channel.
      */
-    private static class ClientStatus {
+    static class ClientStatus {
         private boolean connectAck;
-        private int heartbeatTimeout;
         private boolean heartbeatSent;
+        // System.nanoTime() of the last packet received and of the last heartbeat sent
+        private long lastActivity;
+        private long heartbeatSentTime;
         private final String name;
         private SelectionKey key;
+        private final Reactor reactor;
         private final Instant timeConnected;
+        // requests waiting to be evaluated, and whether a worker is currently going through them. guarded by this
+        private final ArrayDeque<MathRequest> queuedRequests = new ArrayDeque<MathRequest>();
+        private boolean evaluating;
 
-        public ClientStatus(String name, Instant timeConnected, SelectionKey key) {
+        public ClientStatus(String name, Instant timeConnected, SelectionKey key, Reactor reactor, long now) {
             this.connectAck = false;
+            this.lastActivity = now;
             this.name = name;
             this.key = key;
+            this.reactor = reactor;
             this.timeConnected = timeConnected;
         }
 
@@ -498,25 +1150,23 @@ public class Server {
             this.connectAck = true;
         }
 
-        public boolean needsHeartbeat() {
-            return heartbeatTimeout >= HEARTBEAT_TIMEOUT;
-        }
-
         public void heartbeatAck() {
-            this.heartbeatTimeout = 0;
             this.heartbeatSent = false;
         }
 
-        public void incHeartbeatTimeout() {
-            this.heartbeatTimeout++;
-        }
-
-        public void setHeartbeatSent() {
+        public void setHeartbeatSent(long now) {
             this.heartbeatSent = true;
+            this.heartbeatSentTime = now;
         }
 
         public boolean getHeartbeatSent() { return heartbeatSent; }
 
+        public long getHeartbeatSentTime() { return heartbeatSentTime; }
+
+        public void setLastActivity(long now) { this.lastActivity = now; }
+
+        public long getLastActivity() { return lastActivity; }
+
         public SocketChannel getSocket() { return (SocketChannel) key.channel(); }
 
         public void tryCloseSocket() {
@@ -529,8 +1179,46 @@ public class Server {
 
         public SelectionKey getKey() { return key; }
 
+        public Reactor getReactor() { return reactor; }
+
         public Instant getTimeConnected() { return timeConnected; }
 
+        /**
+         * Adds a request to the queue.
+         *
+         * @return true if no worker is going through the queue, and the caller has to start one
+         */
+        public synchronized boolean queueRequest(MathRequest req) {
+            queuedRequests.add(req);
+            if (evaluating) return false;
+            evaluating = true;
+            return true;
+        }
+
+        /**
+         * Takes the next request off the queue. Once the queue is empty the worker going through it is done.
+         *
+         * @return the next request, or null if the queue is empty
+         */
+        @Nullable
+        public synchronized MathRequest nextQueuedRequest() {
+            MathRequest req = queuedRequests.poll();
+            if (req == null) evaluating = false;
+            return req;
+        }
+
+        /**
+         * Empties the queue without evaluating it, for when no worker could be started.
+         *
+         * @return the requests that were queued
+         */
+        public synchronized List<MathRequest> takeQueuedRequests() {
+            List<MathRequest> taken = new ArrayList<MathRequest>(queuedRequests);
+            queuedRequests.clear();
+            evaluating = false;
+            return taken;
+        }
+
         @Override
         public String toString() {
             return "ClientStatus[" + name + "]";
@@ -544,14 +1232,36 @@ public class Server {
     public static class MathRequest {
         private final Packet packet;
         private final ClientStatus client;
+        // System.nanoTime() when the request was received
+        private final long queuedAt;
 
         public MathRequest(Packet packet, ClientStatus client) {
             this.packet = packet;
             this.client = client;
+            this.queuedAt = System.nanoTime();
         }
 
+        public long getQueuedAt() { return queuedAt; }
+
         public Packet getPacket() { return packet; }
 
         public ClientStatus getClient() { return client; }
     }
+
+    /**
+     * The response to a math request, ready to be written to the client that sent it.
+     */
+    private static class MathResponse {
+        private final MathRequest request;
+        private final Packet packet;
+
+        public MathResponse(MathRequest request, Packet packet) {
+            this.request = request;
+            this.packet = packet;
+        }
+
+        public MathRequest getRequest() { return request; }
+
+        public Packet getPacket() { return packet; }
+    }
 }
@@ -0,0 +1,232 @@
+package project;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+import project.App.LogLevel;
+import project.PacketHelper.PacketType;
+
+/**
+ * Latency histograms and counters for a server, shared by every server mode.
+ * Everything is recorded with atomic counters, so recording never locks and can happen on the reactor, worker and client threads alike.
+ * snapshot() copies the current values, and startDump logs a snapshot periodically.
+ */
+public class ServerMetrics {
+    /**
+     * Why a client was dropped, or a request turned away.
+     */
+    public enum DropReason {
+        // the client asked to disconnect
+        CLIENT_DISCONNECT,
+        DUPLICATE_NAME,
+        // sent something other than CONNECT first
+        NOT_CONNECTED,
+        // sent a packet under another name
+        WRONG_SENDER,
+        INVALID_PACKET,
+        // reading or writing the socket failed, or the client closed it
+        IO_ERROR,
+        // did not send the ACK for CONNECT in time
+        CONNECT_TIMEOUT,
+        HEARTBEAT_TIMEOUT,
+        // a request answered with "Server Busy" because the worker pool was full. the client stays connected
+        SERVER_BUSY
+    }
+
+    // MATH and MATH_BATCH requests: waiting for a worker, then being parsed and evaluated
+    private final Histogram queueWait = new Histogram();
+    private final Histogram eval = new Histogram();
+    // socket writes, which in reactor mode carry every frame queued for a connection at once
+    private final Histogram write = new Histogram();
+
+    private final LongAdder[] packetsIn = newCounters(PacketType.values().length);
+    private final LongAdder[] packetsOut = newCounters(PacketType.values().length);
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder writeCalls = new LongAdder();
+    private final LongAdder framesWritten = new LongAdder();
+    private final LongAdder[] drops = newCounters(DropReason.values().length);
+    // requests received but not picked up by a worker yet
+    private final LongAdder queueDepth = new LongAdder();
+    private final IntSupplier sessions;
+
+    private ScheduledExecutorService dumper;
+
+    /**
+     * @param sessions the number of connected clients right now
+     */
+    public ServerMetrics(IntSupplier sessions) {
+        this.sessions = sessions;
+    }
+
+    private static LongAdder[] newCounters(int count) {
+        LongAdder[] counters = new LongAdder[count];
+        for (int i = 0; i < count; i++) {
+            counters[i] = new LongAdder();
+        }
+        return counters;
+    }
+
+    public Histogram getQueueWait() { return queueWait; }
+
+    public Histogram getEval() { return eval; }
+
+    public Histogram getWrite() { return write; }
+
+    public void packetIn(PacketType type) { packetsIn[type.ordinal()].increment(); }
+
+    public void packetOut(PacketType type) { packetsOut[type.ordinal()].increment(); }
+
+    public void bytesIn(long bytes) { bytesIn.add(bytes); }
+
+    /**
+     * Records one socket write.
+     *
+     * @param start System.nanoTime() before the write
+     * @param bytes the bytes written
+     * @param frames the frames the write completed
+     */
+    public void write(long start, long bytes, int frames) {
+        write.recordSince(start);
+        bytesOut.add(bytes);
+        writeCalls.increment();
+        framesWritten.add(frames);
+    }
+
+    /**
+     * Counts a request as waiting to be evaluated, until requestDequeued is called for it.
+     */
+    public void requestQueued() { queueDepth.increment(); }
+
+    public void requestDequeued(int count) { queueDepth.add(-count); }
+
+    public void drop(DropReason reason) { drops[reason.ordinal()].increment(); }
+
+    public void drop(DropReason reason, int count) { drops[reason.ordinal()].add(count); }
+
+    public long getWriteCalls() { return writeCalls.sum(); }
+
+    public long getFramesWritten() { return framesWritten.sum(); }
+
+    /**
+     * @return a copy of every metric as it is now
+     */
+    public Snapshot snapshot() {
+        Map<PacketType, Long> in = new EnumMap<PacketType, Long>(PacketType.class);
+        Map<PacketType, Long> out = new EnumMap<PacketType, Long>(PacketType.class);
+        for (PacketType type : PacketType.values()) {
+            in.put(type, packetsIn[type.ordinal()].sum());
+            out.put(type, packetsOut[type.ordinal()].sum());
+        }
+        Map<DropReason, Long> dropped = new EnumMap<DropReason, Long>(DropReason.class);
+        for (DropReason reason : DropReason.values()) {
+            dropped.put(reason, drops[reason.ordinal()].sum());
+        }
+        return new Snapshot(queueWait.snapshot(), eval.snapshot(), write.snapshot(), in, out, bytesIn.sum(), bytesOut.sum(), writeCalls.sum(), framesWritten.sum(),
+                dropped, sessions.getAsInt(), queueDepth.sum());
+    }
+
+    /**
+     * Logs a snapshot every given number of seconds until stopDump is called.
+     *
+     * @param intervalSeconds seconds between snapshots
+     */
+    public synchronized void startDump(int intervalSeconds) {
+        if (intervalSeconds < 1) { throw new IllegalArgumentException("Metrics interval must be positive"); }
+        if (dumper != null) return;
+        dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "metrics-dump");
+            thread.setDaemon(true);
+            return thread;
+        });
+        dumper.scheduleAtFixedRate(() -> App.log("Metrics:\n" + snapshot(), LogLevel.INFO), intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    public synchronized void stopDump() {
+        if (dumper != null) dumper.shutdownNow();
+        dumper = null;
+    }
+
+    /**
+     * Every metric at one point in time.
+     */
+    public static class Snapshot {
+        private final Histogram.Snapshot queueWait;
+        private final Histogram.Snapshot eval;
+        private final Histogram.Snapshot write;
+        private final Map<PacketType, Long> packetsIn;
+        private final Map<PacketType, Long> packetsOut;
+        private final long bytesIn;
+        private final long bytesOut;
+        private final long writeCalls;
+        private final long framesWritten;
+        private final Map<DropReason, Long> drops;
+        private final int sessions;
+        private final long queueDepth;
+
+        private Snapshot(Histogram.Snapshot queueWait, Histogram.Snapshot eval, Histogram.Snapshot write, Map<PacketType, Long> packetsIn, Map<PacketType, Long> packetsOut,
+                long bytesIn, long bytesOut, long writeCalls, long framesWritten, Map<DropReason, Long> drops, int sessions, long queueDepth) {
+            this.queueWait = queueWait;
+            this.eval = eval;
+            this.write = write;
+            this.packetsIn = packetsIn;
+            this.packetsOut = packetsOut;
+            this.bytesIn = bytesIn;
+            this.bytesOut = bytesOut;
+            this.writeCalls = writeCalls;
+            this.framesWritten = framesWritten;
+            this.drops = drops;
+            this.sessions = sessions;
+            this.queueDepth = queueDepth;
+        }
+
+        public Histogram.Snapshot getQueueWait() { return queueWait; }
+
+        public Histogram.Snapshot getEval() { return eval; }
+
+        public Histogram.Snapshot getWrite() { return write; }
+
+        public long getPacketsIn(PacketType type) { return packetsIn.get(type); }
+
+        public long getPacketsOut(PacketType type) { return packetsOut.get(type); }
+
+        public long getBytesIn() { return bytesIn; }
+
+        public long getBytesOut() { return bytesOut; }
+
+        public long getWriteCalls() { return writeCalls; }
+
+        public long getFramesWritten() { return framesWritten; }
+
+        public long getDrops(DropReason reason) { return drops.get(reason); }
+
+        public int getSessions() { return sessions; }
+
+        /**
+         * @return the number of requests waiting for a worker
+         */
+        public long getQueueDepth() { return queueDepth; }
+
+        @Override
+        public String toString() {
+            return "  sessions=" + sessions + " queueDepth=" + queueDepth + " bytesIn=" + bytesIn + " bytesOut=" + bytesOut + " writes=" + writeCalls + " frames=" + framesWritten + "\n"
+                    + "  packetsIn=" + nonZero(packetsIn) + "\n"
+                    + "  packetsOut=" + nonZero(packetsOut) + "\n"
+                    + "  drops=" + nonZero(drops) + "\n"
+                    + "  queueWait: " + queueWait + "\n"
+                    + "  eval: " + eval + "\n"
+                    + "  write: " + write;
+        }
+
+        private static <K extends Enum<K>> Map<K, Long> nonZero(Map<K, Long> counts) {
+            Map<K, Long> out = new EnumMap<K, Long>(counts);
+            out.values().removeIf(count -> count == 0);
+            return out;
+        }
+    }
+}
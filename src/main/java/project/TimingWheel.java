@@ -0,0 +1,100 @@
+package project;
+
+import java.util.ArrayDeque;
+import java.util.function.Consumer;
+
+/**
+ * A hashed timing wheel. Timers are kept in a ring of slots by their deadline, so scheduling one is O(1) and each tick only looks at
+ * the timers in one slot instead of every timer there is. Timers more than one turn of the wheel away stay in their slot and are skipped
+ * until the turn they're due in. There is no cancelling: whoever handles an expired timer checks whether it still matters.
+ * Not thread safe, each wheel belongs to one thread.
+ *
+ * @param <T> what a timer fires for
+ */
+public class TimingWheel<T> {
+    private final long tickNanos;
+    private final ArrayDeque<Timer<T>>[] slots;
+    private final int mask;
+    // nanoTime at tick 0
+    private final long start;
+    // the last tick that was processed
+    private long tick;
+    private int size;
+
+    /**
+     * @param tickNanos the length of one tick, which is how precise deadlines are
+     * @param slots the number of slots, a power of two. a turn of the wheel is slots * tickNanos
+     * @param now the current System.nanoTime()
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public TimingWheel(long tickNanos, int slots, long now) {
+        if (tickNanos < 1 || slots < 1 || Integer.bitCount(slots) != 1) { throw new IllegalArgumentException("Timing wheel needs a positive tick and a power of two slots"); }
+        this.tickNanos = tickNanos;
+        this.slots = new ArrayDeque[slots];
+        for (int i = 0; i < slots; i++) {
+            this.slots[i] = new ArrayDeque<Timer<T>>();
+        }
+        this.mask = slots - 1;
+        this.start = now;
+    }
+
+    /**
+     * Schedules a timer. It fires on the first tick at or after the deadline, and never on the tick currently being processed.
+     *
+     * @param item what the timer is for, handed to advance's callback when it expires
+     * @param deadline the System.nanoTime() to fire at
+     */
+    public void schedule(T item, long deadline) {
+        long due = Math.max(tick + 1, Math.floorDiv(deadline - start + tickNanos - 1, tickNanos));
+        slots[(int) (due & mask)].add(new Timer<T>(item, due));
+        size++;
+    }
+
+    /**
+     * Processes every tick up to now, handing each expired timer's item to the callback.
+     * The callback may schedule new timers.
+     *
+     * @param now the current System.nanoTime()
+     * @param expired called for each timer that expired
+     */
+    public void advance(long now, Consumer<T> expired) {
+        long target = Math.floorDiv(now - start, tickNanos);
+        while (tick < target) {
+            tick++;
+            ArrayDeque<Timer<T>> slot = slots[(int) (tick & mask)];
+            // timers added by the callback are never due this tick, so only the ones already here need looking at
+            for (int i = slot.size(); i > 0; i--) {
+                Timer<T> timer = slot.poll();
+                if (timer.due > tick) {
+                    slot.add(timer);
+                } else {
+                    size--;
+                    expired.accept(timer.item);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param now the current System.nanoTime()
+     * @return nanos until the next tick should be processed, at least 1
+     */
+    public long nanosUntilNextTick(long now) {
+        return Math.max(1, start + (tick + 1) * tickNanos - now);
+    }
+
+    /**
+     * @return the number of scheduled timers
+     */
+    public int size() { return size; }
+
+    private static class Timer<T> {
+        private final T item;
+        private final long due;
+
+        Timer(T item, long due) {
+            this.item = item;
+            this.due = due;
+        }
+    }
+}
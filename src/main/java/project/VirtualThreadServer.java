@@ -0,0 +1,506 @@
+package project;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.Nullable;
+
+import org.json.JSONException;
+
+import project.App.LogLevel;
+import project.PacketHelper.Packet;
+import project.PacketHelper.PacketType;
+import project.ServerMetrics.DropReason;
+
+/**
+ * A server speaking the same protocol as Server, but with blocking I/O and one virtual thread per client instead of selectors.
+ * Each client's thread reads its packets, evaluates its requests and writes the results itself, so requests are answered in order
+ * without any queues. Blocking on a virtual thread only parks it, which lets this scale to as many connections as the reactor.
+ * Uses the same packet codec and expression cache as Server, so both can be compared on the same workload.
+ */
+public class VirtualThreadServer {
+    public final int PORT;
+    public final String HOST;
+    private final ServerSocketChannel serverSocket;
+    // connected clients by name
+    private final Map<String, Session> clients;
+    private final ExpressionCache expressionCache;
+    // every client's thread holds one of these for as long as it is connected
+    private final BufferPool readBuffers;
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+    // heartbeat timers, only touched by the scheduler thread. sessions that just connected wait in newTimers until its next tick
+    private final TimingWheel<Session> timers;
+    private final ConcurrentLinkedQueue<Session> newTimers = new ConcurrentLinkedQueue<Session>();
+    private final long heartbeatInterval;
+    private final long heartbeatTimeout;
+    private final AtomicLong connections = new AtomicLong();
+    private final PacketHelper.Template heartbeatTemplate;
+    private final PacketHelper.Template ackTemplate;
+    private final ServerMetrics metrics;
+    private final int metricsInterval;
+    private final int metricsPort;
+    @Nullable
+    private volatile MetricsEndpoint metricsEndpoint;
+    private volatile boolean running = true;
+    private static final long TIMER_TICK = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final int TIMER_SLOTS = 128;
+
+    public VirtualThreadServer(String host, int port) throws IOException {
+        this(host, port, new Server.Options());
+    }
+
+    /**
+     * Only the cache, JIT, read buffer, heartbeat and metrics options apply, there are no reactors or worker pool in this mode.
+     */
+    public VirtualThreadServer(String host, int port, Server.Options options) throws IOException {
+        this.HOST = host;
+        this.PORT = port;
+        this.heartbeatTemplate = new PacketHelper.Template(PacketType.HEARTBEAT, Server.senderName(host, port));
+        this.ackTemplate = new PacketHelper.Template(PacketType.ACK, Server.senderName(host, port));
+        this.serverSocket = ServerSocketChannel.open();
+        this.clients = new ConcurrentHashMap<String, Session>();
+        this.expressionCache = new ExpressionCache(options.cacheCapacity, options.cacheMaxBytes, options.cacheResults);
+        this.readBuffers = Server.Options.readBufferPool(options);
+        if (options.heartbeatInterval < 1 || options.heartbeatTimeout < 1) { throw new IllegalArgumentException("Heartbeat interval and timeout must be positive"); }
+        this.heartbeatInterval = TimeUnit.MILLISECONDS.toNanos(options.heartbeatInterval);
+        this.heartbeatTimeout = TimeUnit.MILLISECONDS.toNanos(options.heartbeatTimeout);
+        this.timers = new TimingWheel<Session>(TIMER_TICK, TIMER_SLOTS, System.nanoTime());
+        MathJit.setEnabled(options.jitEnabled);
+        MathJit.setThreshold(options.jitThreshold);
+        if (options.metricsInterval < 0) { throw new IllegalArgumentException("Metrics interval can't be negative"); }
+        this.metricsInterval = options.metricsInterval;
+        if (options.metricsPort < 0 || options.metricsPort > 65535) { throw new IllegalArgumentException("Invalid metrics port " + options.metricsPort); }
+        this.metricsPort = options.metricsPort;
+        this.metrics = new ServerMetrics(clients::size);
+    }
+
+    /**
+     * Starts the server. Clients that go quiet for the heartbeat interval are sent a heartbeat.
+     * Accepts connections on the calling thread and starts a virtual thread serving each of them.
+     */
+    public void start() {
+        // up before the server accepts clients, so whatever sees the server up can scrape it
+        metricsEndpoint = MetricsEndpoint.startIfEnabled(HOST, metricsPort, metrics);
+        try {
+            serverSocket.bind(new InetSocketAddress(HOST, PORT));
+        } catch (IOException e) {
+            App.log("Exception initializing server", LogLevel.ERROR);
+            e.printStackTrace();
+            System.exit(-1);
+            return;
+        }
+        App.log("Starting on address " + HOST + ":" + PORT + " with a virtual thread per client", LogLevel.INFO);
+
+        // check the heartbeat timers every tick
+        scheduler.scheduleAtFixedRate(() -> handleHeartbeatTimers(), TIMER_TICK, TIMER_TICK, TimeUnit.NANOSECONDS);
+        if (metricsInterval > 0) metrics.startDump(metricsInterval);
+
+        // Accept Loop
+        while (running) {
+            try {
+                SocketChannel client = serverSocket.accept();
+                // ACK and RESULT go out as separate small frames, Nagle would hold the RESULT back until the client ACKs the first one
+                client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                Session session = new Session(client, metrics);
+                Thread.ofVirtual().name("client-" + connections.incrementAndGet()).start(() -> serve(session));
+            } catch (ClosedChannelException e) {
+                // stopped
+                break;
+            } catch (IOException e) {
+                App.log("Exception adding client", LogLevel.ERROR);
+            }
+        }
+    }
+
+    /**
+     * Stops the server and closes every connection.
+     */
+    public void stop() {
+        running = false;
+        scheduler.shutdownNow();
+        metrics.stopDump();
+        if (metricsEndpoint != null) metricsEndpoint.stop();
+        Server.tryClose(serverSocket);
+        for (Session session : clients.values()) {
+            session.close();
+        }
+    }
+
+    /**
+     * Reads and handles packets from one client until it disconnects or gets dropped. Runs on the client's virtual thread.
+     *
+     * @param session the client's connection
+     */
+    private void serve(Session session) {
+        PacketHelper.FrameDecoder decoder = session.getDecoder();
+        ByteBuffer buffer = readBuffers.acquire();
+        try {
+            while (running && session.isOpen()) {
+                buffer.clear();
+                int read = session.getSocket().read(buffer);
+                if (read < 0) {
+                    throw new IOException("Connection closed");
+                }
+                metrics.bytesIn(read);
+                buffer.flip();
+                decoder.feed(buffer);
+                for (Packet p = decoder.next(); p != null && session.isOpen(); p = decoder.next()) {
+                    // any packet shows the client is alive
+                    session.setLastActivity(System.nanoTime());
+                    handlePacket(p, session);
+                }
+            }
+        } catch (JSONException e) {
+            App.log(invalidPacketMessage(session), LogLevel.WARN);
+            metrics.drop(DropReason.INVALID_PACKET);
+        } catch (IOException e) {
+            // dropped by the heartbeat, or stopped
+            if (session.isOpen() && running) {
+                metrics.drop(DropReason.IO_ERROR);
+                if (session.getName() != null) {
+                    App.log("Exception reading from client '" + session.getName() + "''. Assuming disconnect... Client was connected for " + session.getSecondsConnected() + " seconds", LogLevel.WARN);
+                } else {
+                    App.log("Exception reading from unknown client. Dropping...", LogLevel.WARN);
+                }
+            }
+        } finally {
+            readBuffers.release(buffer);
+            drop(session);
+        }
+    }
+
+    /**
+     * Handles a single packet received from a client, with the same checks as Server.
+     * Anything that ends the connection closes the session, which stops the client's thread.
+     *
+     * @param p The packet received.
+     * @param session The client's connection.
+     */
+    private void handlePacket(Packet p, Session session) throws IOException {
+        metrics.packetIn(p.getType());
+        // check if client is known
+        if (session.getName() == null && p.getType() != PacketType.CONNECT) {
+            App.log("Received packet from unknown client '" + p.getSender() + "'! Sending DISCONNECT...", LogLevel.WARN);
+            disconnect(session, DropReason.NOT_CONNECTED, "Client has not connected. Dropping client...");
+            return;
+        }
+
+        // check if packet name is valid (except for CONNECT)
+        if (session.getName() != null && p.getType() != PacketType.CONNECT && !p.getSender().equals(session.getName())) {
+            App.log("Received packet from '" + p.getSender() + "' but expected packet from '" + session.getName() + "'! Dropping client... Client was connected for "
+                    + session.getSecondsConnected() + " seconds", LogLevel.WARN);
+            disconnect(session, DropReason.WRONG_SENDER, "Client sent packet with invalid name. Dropping client...");
+            return;
+        }
+
+        switch (p.getType()) {
+        case CONNECT:
+            // claim the name, the map makes checking and adding one step
+            if (session.getName() != null || clients.putIfAbsent(p.getSender(), session) != null) {
+                App.log("Received CONNECT from client '" + p.getSender() + "' but client with same name already connected. Ignoring...", LogLevel.WARN);
+                disconnect(session, DropReason.DUPLICATE_NAME, "Client with same name already connected. Change name and reconnect.");
+                return;
+            }
+            session.connected(p.getSender(), p.getTimestamp());
+            newTimers.add(session);
+            // the ACK still goes out as JSON, everything after it uses the codec the client asked for
+            PacketHelper.Codec codec = PacketHelper.codecOf(p);
+            App.log("Received CONNECT from '" + session.getName() + "'" + (codec != PacketHelper.Codec.JSON ? " using codec " + codec : ""), LogLevel.INFO);
+            session.send(PacketHelper.ACK(this, codec));
+            session.setCodec(codec);
+            return;
+        case DISCONNECT:
+            App.log("Received DISCONNECT from '" + session.getName() + "' with reason '" + p.getContent() + "'. Client was connected for "
+                    + session.getSecondsConnected() + " seconds", LogLevel.INFO);
+            metrics.drop(DropReason.CLIENT_DISCONNECT);
+            session.close();
+            return;
+        case HEARTBEAT:
+            if (session.heartbeatAck()) {
+                App.log(() -> "Received HEARTBEAT from '" + session.getName() + "'", LogLevel.DEBUG);
+            } else {
+                App.log("Received HEARTBEAT from '" + session.getName() + "' but no HEARTBEAT needed", LogLevel.WARN);
+            }
+            return;
+        case ACK:
+            if (session.setConnectionAck()) {
+                App.log("Received ACK for CONNECT from " + session.getName(), LogLevel.INFO);
+            } else {
+                App.log("Received ACK from '" + session.getName() + "' but no ACK needed", LogLevel.WARN);
+            }
+            return;
+        case MATH:
+        case MATH_BATCH:
+            App.log(() -> "Received " + p.getType() + (p.hasId() ? " #" + p.getId() : "") + " from '" + session.getName() + "'", LogLevel.DEBUG);
+            session.send(ackTemplate.packet(p.getId()));
+            // evaluated right here on the client's thread, so unlike the reactor server there is no queue to wait in
+            long start = System.nanoTime();
+            Packet result = Server.evaluateRequest(this, expressionCache, p, session.getName());
+            metrics.getEval().recordSince(start);
+            session.send(result);
+            return;
+        case RESULT:
+        case RESULT_BATCH:
+            App.log(invalidPacketMessage(session), LogLevel.WARN);
+            disconnect(session, DropReason.INVALID_PACKET, "Client dropped due to invalid " + p.getType() + " sent");
+            return;
+        }
+    }
+
+    /**
+     * Advances the heartbeat timers, sending a heartbeat to every client that has been quiet for the heartbeat interval
+     * and dropping the ones that have not answered. Only the expired timers are looked at, not every client.
+     * This runs on the one scheduler thread for every client, so it never writes to a socket itself: a client that stopped reading
+     * would block it and stop the heartbeats of everyone else. Heartbeats and DISCONNECTs are sent from virtual threads of their own.
+     */
+    private void handleHeartbeatTimers() {
+        long now = System.nanoTime();
+        for (Session session = newTimers.poll(); session != null; session = newTimers.poll()) {
+            timers.schedule(session, now + heartbeatInterval);
+        }
+        timers.advance(now, session -> {
+            if (!session.isOpen()) return;
+            // the DISCONNECT had its chance to go out
+            if (session.isDropping()) {
+                session.close();
+                return;
+            }
+            switch (session.checkHeartbeat(now, heartbeatInterval, heartbeatTimeout)) {
+            case SEND:
+                App.log(() -> "Sending HEARTBEAT to " + session.getName(), LogLevel.DEBUG);
+                timers.schedule(session, session.getDeadline());
+                Thread.ofVirtual().name("heartbeat-" + session.getName()).start(() -> sendHeartbeat(session));
+                break;
+            case TIMED_OUT:
+                App.log("Client '" + session.getName() + "' has not responded to HEARTBEAT after " + TimeUnit.NANOSECONDS.toMillis(heartbeatTimeout) + " ms. Dropping client. Client was connected for "
+                        + session.getSecondsConnected() + " seconds", LogLevel.INFO);
+                dropLater(session, now, DropReason.HEARTBEAT_TIMEOUT, "Client has not responded to HEARTBEAT after " + TimeUnit.NANOSECONDS.toMillis(heartbeatTimeout) + " ms. Dropping client...");
+                break;
+            case UNACKNOWLEDGED:
+                App.log("Client '" + session.getName() + "' has not acknowledged its connection. Dropping client...", LogLevel.INFO);
+                dropLater(session, now, DropReason.CONNECT_TIMEOUT, "Client has not acknowledged its connection. Dropping client...");
+                break;
+            default:
+                timers.schedule(session, session.getDeadline());
+                break;
+            }
+        });
+    }
+
+    /**
+     * Sends a heartbeat to a client. Runs on a virtual thread of its own, which waits as long as the client isn't reading.
+     */
+    private void sendHeartbeat(Session session) {
+        try {
+            session.send(heartbeatTemplate.packet());
+        } catch (IOException e) {
+            // closed by a drop while waiting, nothing more to do
+            if (!session.isOpen()) return;
+            App.log(Server.packetSendExceptionMessage(PacketType.HEARTBEAT, null, session.getName()), LogLevel.WARN);
+            metrics.drop(DropReason.IO_ERROR);
+            session.close();
+        }
+    }
+
+    /**
+     * Drops a client from the heartbeat scheduler. The DISCONNECT goes out from a virtual thread of its own,
+     * and if the client isn't reading so it can't be written, the timer closes the socket one heartbeat timeout later anyway.
+     * Closing the socket also ends any write still waiting on it.
+     */
+    private void dropLater(Session session, long now, DropReason dropReason, String reason) {
+        session.setDropping();
+        timers.schedule(session, now + heartbeatTimeout);
+        Thread.ofVirtual().name("disconnect-" + session.getName()).start(() -> disconnect(session, dropReason, reason));
+    }
+
+    /**
+     * Sends a DISCONNECT with the given reason and closes the connection.
+     */
+    private void disconnect(Session session, DropReason dropReason, String reason) {
+        metrics.drop(dropReason);
+        try {
+            session.send(PacketHelper.DISCONNECT(this, reason));
+        } catch (IOException e) {
+            App.log(Server.packetSendExceptionMessage(PacketType.DISCONNECT, null, session.getName() != null ? session.getName() : "unknown client"), LogLevel.WARN);
+        }
+        session.close();
+    }
+
+    /**
+     * Closes the connection and frees the client's name.
+     */
+    private void drop(Session session) {
+        session.close();
+        if (session.getName() != null) {
+            clients.remove(session.getName(), session);
+        }
+    }
+
+    private static String invalidPacketMessage(Session session) {
+        return "Invalid packet received from " + (session.getName() != null ? "'" + session.getName() + "'" : " unknown client ") + "! Dropping client. Client was connected for "
+                + (session.getName() != null ? session.getSecondsConnected() : "UNKNOWN") + " seconds";
+    }
+
+    public ExpressionCache getExpressionCache() { return expressionCache; }
+
+    public BufferPool getReadBufferPool() { return readBuffers; }
+
+    public ServerMetrics getMetrics() { return metrics; }
+
+    /**
+     * @return the number of connected clients
+     */
+    public int getClientCount() { return clients.size(); }
+
+    @Override
+    public String toString() {
+        return Server.senderName(HOST, PORT);
+    }
+
+    private enum HeartbeatAction { NONE, SEND, TIMED_OUT, UNACKNOWLEDGED }
+
+    /**
+     * One client connection. Writes take a lock, since heartbeats and DISCONNECTs from the scheduler are written from other threads.
+     * It's a ReentrantLock rather than a monitor, so a virtual thread blocked writing to a client that isn't reading doesn't pin its carrier.
+     */
+    private static class Session {
+        private final SocketChannel socket;
+        @Nullable
+        private volatile String name;
+        private Instant timeConnected;
+        private boolean connectAck;
+        private boolean heartbeatSent;
+        // System.nanoTime() of the last packet received, and of the last heartbeat sent
+        private volatile long lastActivity;
+        private long heartbeatSentTime;
+        // when the heartbeat timer should expire next
+        private long deadline;
+        // set once the scheduler decided to drop the client, the socket is closed when the timer expires again
+        private volatile boolean dropping;
+        private final ReentrantLock writeLock = new ReentrantLock();
+
+        private final PacketHelper.FrameDecoder decoder = new PacketHelper.FrameDecoder();
+        // read by the heartbeat thread too
+        private volatile PacketHelper.Codec codec = PacketHelper.Codec.JSON;
+        private final ServerMetrics metrics;
+
+        Session(SocketChannel socket, ServerMetrics metrics) {
+            this.socket = socket;
+            this.metrics = metrics;
+            this.timeConnected = Instant.now();
+            this.lastActivity = System.nanoTime();
+        }
+
+        @Nullable
+        public String getName() { return name; }
+
+        public SocketChannel getSocket() { return socket; }
+
+        /**
+         * @return the decoder for this connection, only to be used by the client's thread
+         */
+        public PacketHelper.FrameDecoder getDecoder() { return decoder; }
+
+        /**
+         * Switches the codec packets are encoded and decoded with. Called on the client's thread, so the decoder switches right after the CONNECT.
+         */
+        public void setCodec(PacketHelper.Codec codec) {
+            this.codec = codec;
+            decoder.setCodec(codec);
+        }
+
+        public boolean isOpen() { return socket.isOpen(); }
+
+        public synchronized void connected(String name, Instant timeConnected) {
+            this.name = name;
+            this.timeConnected = timeConnected;
+        }
+
+        public synchronized long getSecondsConnected() {
+            return timeConnected.until(Instant.now(), ChronoUnit.SECONDS);
+        }
+
+        /**
+         * @return false if the connection was already acknowledged
+         */
+        public synchronized boolean setConnectionAck() {
+            if (connectAck) return false;
+            connectAck = true;
+            return true;
+        }
+
+        /**
+         * @return false if no heartbeat was needed
+         */
+        public synchronized boolean heartbeatAck() {
+            if (!heartbeatSent) return false;
+            heartbeatSent = false;
+            return true;
+        }
+
+        public void setLastActivity(long now) { this.lastActivity = now; }
+
+        /**
+         * Called when the heartbeat timer expires. Works out what to do about it, and if the client stays, when the timer should expire next.
+         *
+         * @return whether a heartbeat should be sent now, or the client has to be dropped
+         */
+        public synchronized HeartbeatAction checkHeartbeat(long now, long interval, long timeout) {
+            long idleDeadline = lastActivity + interval;
+            deadline = idleDeadline;
+            if (!connectAck) return now - idleDeadline < 0 ? HeartbeatAction.NONE : HeartbeatAction.UNACKNOWLEDGED;
+            if (heartbeatSent) {
+                // anything received since the heartbeat counts as an answer
+                if (lastActivity - heartbeatSentTime < 0) return HeartbeatAction.TIMED_OUT;
+                heartbeatSent = false;
+                return HeartbeatAction.NONE;
+            }
+            if (now - idleDeadline < 0) return HeartbeatAction.NONE;
+            heartbeatSent = true;
+            heartbeatSentTime = now;
+            deadline = now + timeout;
+            return HeartbeatAction.SEND;
+        }
+
+        public synchronized long getDeadline() { return deadline; }
+
+        public boolean isDropping() { return dropping; }
+
+        public void setDropping() { this.dropping = true; }
+
+        public void send(Packet p) throws IOException {
+            ByteBuffer buffer = p.toBuffer(codec);
+            int bytes = buffer.remaining();
+            writeLock.lock();
+            try {
+                long start = System.nanoTime();
+                while (buffer.hasRemaining()) {
+                    socket.write(buffer);
+                }
+                metrics.write(start, bytes, 1);
+            } finally {
+                writeLock.unlock();
+            }
+            metrics.packetOut(p.getType());
+        }
+
+        public void close() {
+            Server.tryClose(socket);
+        }
+    }
+}
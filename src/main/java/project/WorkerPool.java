@@ -0,0 +1,124 @@
+package project;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs expression evaluation off the reactor threads, so one slow expression doesn't hold up every other client.
+ * Tasks run either on a fixed pool of platform threads or on a virtual thread each.
+ * Either way at most workers + queueSize tasks can be waiting or running at once, the saturation policy decides what happens to the rest.
+ */
+public class WorkerPool {
+    private final ExecutorService executor;
+    // one permit per task that is queued or running
+    private final Semaphore slots;
+    private final int capacity;
+    private final Saturation saturation;
+    private final int workers;
+    private final boolean virtual;
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong callerRuns = new AtomicLong();
+
+    /**
+     * @param workers the number of platform threads, ignored for virtual threads except for sizing the bound on pending tasks
+     * @param virtual if true, run every task on its own virtual thread instead of a fixed pool
+     * @param queueSize how many tasks may wait for a worker before the pool counts as saturated
+     * @param saturation what to do with tasks submitted while the pool is saturated
+     */
+    public WorkerPool(int workers, boolean virtual, int queueSize, Saturation saturation) {
+        if (workers < 1 || queueSize < 0) { throw new IllegalArgumentException("Worker pool needs at least 1 worker and a non negative queue size"); }
+        this.workers = workers;
+        this.virtual = virtual;
+        this.saturation = saturation;
+        this.capacity = workers + queueSize;
+        this.slots = new Semaphore(capacity);
+        if (virtual) {
+            this.executor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("eval-", 0).factory());
+        } else {
+            this.executor = Executors.newFixedThreadPool(workers, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "eval-" + count.getAndIncrement());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+    }
+
+    /**
+     * Submits a task. If the pool is saturated the task is either run right away on the calling thread or rejected,
+     * depending on the saturation policy.
+     *
+     * @param task the task to run
+     * @return false if the task was rejected and will not run
+     */
+    public boolean submit(Runnable task) {
+        if (slots.tryAcquire()) {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    slots.release();
+                }
+            });
+            return true;
+        }
+        if (saturation == Saturation.CALLER_RUNS) {
+            callerRuns.incrementAndGet();
+            task.run();
+            return true;
+        }
+        rejected.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Stops accepting tasks and waits a little for the running ones to finish.
+     */
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public int getWorkers() { return workers; }
+
+    public boolean isVirtual() { return virtual; }
+
+    public Saturation getSaturation() { return saturation; }
+
+    /**
+     * @return the number of tasks queued or running
+     */
+    public int getPending() { return capacity - slots.availablePermits(); }
+
+    public long getRejectedCount() { return rejected.get(); }
+
+    public long getCallerRunsCount() { return callerRuns.get(); }
+
+    @Override
+    public String toString() {
+        return "WorkerPool[" + (virtual ? "virtual" : workers + " threads") + ", " + saturation + ", rejected=" + rejected.get() + ", callerRuns=" + callerRuns.get() + "]";
+    }
+
+    /**
+     * What to do with a task submitted while every worker is busy and the queue is full.
+     */
+    public enum Saturation {
+        // refuse the task, the caller answers the request with an error
+        REJECT,
+        // run the task on the submitting thread, which slows down reading new requests until the pool catches up
+        CALLER_RUNS
+    }
+}
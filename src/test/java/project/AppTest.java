@@ -3,6 +3,20 @@
  */
 package project;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+
 import org.junit.jupiter.api.Test;
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -26,12 +40,67 @@ class AppTest {
         assertEquals(4.0, result);
     }
     
+    @Test
+    public void testDecimalsAndCase() {
+        assertEquals(0.1 + 2.25, MathHelper.parse("0.1 + 2.25"));
+        assertEquals(2.0, MathHelper.parse("SQRT( 4 )"));
+        assertThrows(IllegalArgumentException.class, () -> MathHelper.parse("2. + 1"));
+    }
+
     @Test
     public void testNegativeNumber() {
         double result = MathHelper.parse("-2 + 4");
         assertEquals(2.0, result);
     }
     
+    @Test
+    public void testPrecedenceAndAssociativity() {
+        assertEquals(50.0, MathHelper.parse("2 + 3 * 4 ^ 2"));
+        assertEquals(512.0, MathHelper.parse("2 ^ 3 ^ 2"));
+        assertEquals(-4.0, MathHelper.parse("-2 ^ 2"));
+        assertEquals(0.5, MathHelper.parse("2 ^ -1"));
+        assertEquals(3.0, MathHelper.parse("10 - 4 - 3"));
+        assertEquals(9.0, MathHelper.parse("sqrt(16) * 2 + 1"));
+        assertEquals(14.0, MathHelper.parse("2 * (3 + sqrt(cos(0) * 16))"));
+    }
+
+    @Test
+    public void testLongExpression() {
+        // roughly the client's 1000 character limit
+        StringBuilder sb = new StringBuilder("1");
+        for (int i = 0; i < 249; i++) {
+            sb.append(i % 2 == 0 ? "+2*3" : "-(5)");
+        }
+        assertEquals(1 + 125 * 6 - 124 * 5, MathHelper.parse(sb.toString()));
+    }
+
+    @Test
+    public void testLongFlatChain() {
+        // no nesting at all, however long it gets
+        assertEquals(1201.0, MathHelper.parse("1" + "+1".repeat(1200)));
+
+        // far longer than the nesting limit, through every way of compiling it
+        String chain = "1" + "+2*3-4".repeat(50_000);
+        assertEquals(100_001.0, MathHelper.parse(chain));
+        MathHelper.Expression unsimplified = MathHelper.compileUnsimplified(chain);
+        assertEquals(300_001, unsimplified.getNodeCount());
+        assertEquals(100_001.0, unsimplified.interpret());
+        assertTrue(unsimplified.toString().endsWith("+(2.0*3.0))-4.0)"));
+        assertEquals(100_001.0, MathHelper.compileWithoutFolding(chain).evaluate());
+
+        // nesting is still limited
+        assertThrows(IllegalArgumentException.class, () -> MathHelper.parse("(".repeat(1200) + "1" + ")".repeat(1200)));
+        assertThrows(IllegalArgumentException.class, () -> MathHelper.parse("-".repeat(1200) + "1"));
+        assertThrows(IllegalArgumentException.class, () -> MathHelper.parse("sqrt(".repeat(1200) + "1" + ")".repeat(1200)));
+    }
+
+    @Test
+    public void testCountTokens() {
+        assertEquals(10, MathHelper.countTokens("2 * (3 + Sqrt(4))"));
+        assertEquals(0, MathHelper.countTokens("  "));
+        assertThrows(IllegalArgumentException.class, () -> MathHelper.countTokens("2 # 3"));
+    }
+
     @Test
     public void testInvalidExpression() {
         assertThrows(IllegalArgumentException.class, () -> {
@@ -73,4 +142,547 @@ class AppTest {
             MathHelper.parse("(2 + 2");
         });
     }
+
+    @Test
+    public void testCompiledExpressionReuse() {
+        MathHelper.Expression expression = MathHelper.compile("(2 + 2) * 3");
+        assertEquals(12.0, expression.evaluate());
+        assertEquals(12.0, expression.evaluate());
+        assertEquals(MathHelper.parse("(2 + 2) * 3"), expression.evaluate());
+    }
+
+    @Test
+    public void testExpressionCache() {
+        ExpressionCache cache = new ExpressionCache(2, 1024 * 1024, true);
+        assertEquals(4.0, cache.evaluate("2 + 2"));
+        assertEquals(4.0, cache.evaluate("2+2"));
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getHits());
+
+        // capacity is 2, so a third expression evicts one
+        cache.evaluate("3 * 3");
+        cache.evaluate("4 * 4");
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictions());
+
+        // invalid expressions are not cached
+        assertThrows(IllegalArgumentException.class, () -> cache.evaluate("2 +"));
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testEvaluateDoesNotAllocate() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        // unsimplified, compile would fold this down to a single constant
+        MathHelper.Expression expression = MathHelper.compileUnsimplified("sqrt(16) * 2 + round(2.5) ^ 2 - -3 / (4 + abs(-1))");
+        assertEquals(expression.getOriginalNodeCount(), expression.getNodeCount());
+        double expected = expression.evaluate();
+
+        // warm up so the operand stack exists and the loop is compiled
+        double sum = 0;
+        for (int i = 0; i < 100_000; i++) {
+            sum += expression.evaluate();
+        }
+        threads.getCurrentThreadAllocatedBytes();
+
+        // best of a few rounds, a recompile landing in the middle of one can allocate a little on this thread
+        long allocated = Long.MAX_VALUE;
+        for (int round = 0; round < 3; round++) {
+            long before = threads.getCurrentThreadAllocatedBytes();
+            for (int i = 0; i < 100_000; i++) {
+                sum += expression.evaluate();
+            }
+            allocated = Math.min(allocated, threads.getCurrentThreadAllocatedBytes() - before);
+        }
+
+        assertEquals(expected * 400_000, sum, 1.0);
+        // allow a little slack for the measurement itself, 100k evaluations allocating anything would be far above this
+        assertTrue(allocated < 1024, "Evaluation allocated " + allocated + " bytes");
+    }
+
+    @Test
+    public void testJitPromotion() {
+        int threshold = MathJit.getThreshold();
+        try {
+            MathJit.setThreshold(3);
+            MathHelper.Expression expression = MathHelper.compileUnsimplified("round(2.5) * sqrt(16) - -2 ^ 2 / 3");
+            double expected = expression.interpret();
+            assertEquals(MathHelper.parse("round(2.5) * sqrt(16) - -2 ^ 2 / 3"), expected);
+            for (int i = 0; i < 3; i++) {
+                assertFalse(expression.isJitCompiled());
+                assertEquals(expected, expression.evaluate());
+            }
+            assertTrue(expression.isJitCompiled());
+            assertEquals(expected, expression.evaluate());
+        } finally {
+            MathJit.setThreshold(threshold);
+        }
+    }
+
+    @Test
+    public void testFoldedExpressionNotJitted() {
+        int threshold = MathJit.getThreshold();
+        try {
+            MathJit.setThreshold(3);
+            long generated = MathJit.getGeneratedCount();
+            MathHelper.Expression expression = MathHelper.compile("round(2.5) * sqrt(16) - -2 ^ 2 / 3");
+            for (int i = 0; i < 10; i++) {
+                assertEquals(expression.interpret(), expression.evaluate());
+            }
+            assertFalse(expression.isJitCompiled());
+            assertEquals(generated, MathJit.getGeneratedCount());
+        } finally {
+            MathJit.setThreshold(threshold);
+        }
+    }
+
+    @Test
+    public void testInterpreterAndJitMatchFolding() {
+        // every operator and function, run by the interpreter and generated code instead of being folded away
+        String[] expressions = { "7 + 2.5", "7 - 2.5", "7 * 2.5", "7 / 2.5", "2 ^ 10", "-7", "-2 ^ 2", "1 - -(3 * 2)", "floor(2.7)", "ceil(2.2)", "round(2.5)",
+                "round(-2.5)", "abs(-3)", "sqrt(2)", "cbrt(27)", "log(10)", "sin(1)", "cos(1)", "tan(1)", "(1 + 2) * (3 - 4) / (5 ^ 2)", "sqrt(16) * 2 + round(2.5) ^ 2 - -3 / (4 + abs(-1))" };
+        for (String source : expressions) {
+            MathHelper.Expression expression = MathHelper.compileUnsimplified(source);
+            assertTrue(expression.getNodeCount() > 1, source);
+            double expected = MathHelper.parse(source);
+            assertEquals(expected, expression.interpret(), source);
+            DoubleSupplier jitted = MathJit.compile(expression);
+            assertNotNull(jitted, source);
+            assertEquals(expected, jitted.getAsDouble(), source);
+        }
+    }
+
+    @Test
+    public void testIdentities() {
+        // (2+3) isn't folded, so each identity has to remove the 0 or 1 itself
+        String[] identities = { "(2 + 3) + 0", "0 + (2 + 3)", "(2 + 3) - 0", "(2 + 3) * 1", "1 * (2 + 3)", "(2 + 3) / 1", "(2 + 3) ^ 1" };
+        for (String source : identities) {
+            MathHelper.Expression expression = MathHelper.compileWithoutFolding(source);
+            assertEquals("(2.0+3.0)", expression.toString(), source);
+            assertEquals(5, expression.getOriginalNodeCount(), source);
+            assertEquals(3, expression.getNodeCount(), source);
+            assertEquals(5.0, expression.evaluate(), source);
+        }
+        // not identities for every double, or not identities at all
+        String[] kept = { "0 - (2 + 3)", "1 / (2 + 3)", "1 ^ (2 + 3)", "(2 + 3) * 0", "0 * (2 + 3)" };
+        for (String source : kept) {
+            MathHelper.Expression expression = MathHelper.compileWithoutFolding(source);
+            assertEquals(5, expression.getNodeCount(), source);
+            assertEquals(MathHelper.parse(source), expression.evaluate(), source);
+        }
+    }
+
+    @Test
+    public void testNestedNegation() {
+        MathHelper.Expression twice = MathHelper.compileWithoutFolding("--(2 + 3)");
+        assertEquals("(2.0+3.0)", twice.toString());
+        assertEquals(5.0, twice.evaluate());
+
+        MathHelper.Expression thrice = MathHelper.compileWithoutFolding("---(2 + 3)");
+        assertEquals("(-(2.0+3.0))", thrice.toString());
+        assertEquals(-5.0, thrice.evaluate());
+
+        // collapses inside other nodes too
+        MathHelper.Expression nested = MathHelper.compileWithoutFolding("sqrt(----(2 + 2)) * 1");
+        assertEquals("sqrt((2.0+2.0))", nested.toString());
+        assertEquals(2.0, nested.evaluate());
+    }
+
+    @Test
+    public void testConstantFolding() {
+        MathHelper.Expression expression = MathHelper.compile("sqrt(16) * 2 + --3 ^ 1");
+        assertEquals(11.0, expression.evaluate());
+        assertEquals(10, expression.getOriginalNodeCount());
+        assertEquals(1, expression.getNodeCount());
+        assertTrue(expression.isConstant());
+    }
+
+    @Test
+    public void testBatchPackets() {
+        PacketHelper.Packet batch = PacketHelper.MATH_BATCH("client", Arrays.asList("2 + 2", "3 *"));
+        List<PacketHelper.BatchItem> items = PacketHelper.parseBatch(PacketHelper.parse(batch.toBuffer()).getContent());
+        assertEquals(2, items.size());
+        assertEquals(1, items.get(1).getId());
+        assertEquals("3 *", items.get(1).getExpression());
+
+        PacketHelper.Packet results = PacketHelper.RESULT_BATCH("server", Arrays.asList(PacketHelper.BatchResult.ofValue(0, 4.0), PacketHelper.BatchResult.ofError(1, "Expression Invalid")));
+        List<PacketHelper.BatchResult> parsed = PacketHelper.parseBatchResults(PacketHelper.parse(results.toBuffer()).getContent());
+        assertEquals("4.0", parsed.get(0).getResult());
+        assertTrue(parsed.get(1).isError());
+    }
+
+    @Test
+    public void testFrameDecoder() {
+        ByteBuffer first = PacketHelper.MATH("client", "2 + 2").toBuffer();
+        ByteBuffer second = PacketHelper.HEARTBEAT("client").toBuffer();
+        ByteBuffer stream = ByteBuffer.allocate(first.remaining() + second.remaining()).put(first).put(second).flip();
+
+        // feed the stream in small chunks, cutting through headers and bodies
+        PacketHelper.FrameDecoder decoder = new PacketHelper.FrameDecoder();
+        List<PacketHelper.Packet> packets = new java.util.ArrayList<PacketHelper.Packet>();
+        while (stream.hasRemaining()) {
+            ByteBuffer chunk = stream.slice().limit(Math.min(3, stream.remaining()));
+            stream.position(stream.position() + chunk.remaining());
+            decoder.feed(chunk);
+            for (PacketHelper.Packet p = decoder.next(); p != null; p = decoder.next()) {
+                packets.add(p);
+            }
+        }
+        assertEquals(2, packets.size());
+        assertEquals("2 + 2", packets.get(0).getContent());
+        assertEquals(PacketHelper.PacketType.HEARTBEAT, packets.get(1).getType());
+        assertFalse(decoder.hasRemaining());
+    }
+
+    @Test
+    public void testRequestIds() {
+        PacketHelper.Packet math = PacketHelper.parse(PacketHelper.MATH("client", "2 + 2", 42).toBuffer());
+        assertTrue(math.hasId());
+        assertEquals(42, math.getId());
+        assertEquals(7, PacketHelper.parse(PacketHelper.RESULT_BATCH("server", List.of(), 7).toBuffer()).getId());
+
+        // packets without an id stay compatible
+        PacketHelper.Packet heartbeat = PacketHelper.parse(PacketHelper.HEARTBEAT("client").toBuffer());
+        assertFalse(heartbeat.hasId());
+        assertEquals(PacketHelper.NO_ID, heartbeat.getId());
+    }
+
+    @Test
+    public void testBinaryCodec() {
+        PacketHelper.Packet math = PacketHelper.MATH("client \u00e9", "sqrt(16) * 2", 300);
+        PacketHelper.Packet heartbeat = PacketHelper.HEARTBEAT("server");
+        ByteBuffer first = math.toBuffer(PacketHelper.Codec.BINARY);
+        ByteBuffer second = heartbeat.toBuffer(PacketHelper.Codec.BINARY);
+        assertTrue(first.remaining() < math.toBuffer().remaining());
+
+        PacketHelper.FrameDecoder decoder = new PacketHelper.FrameDecoder();
+        decoder.setCodec(PacketHelper.Codec.BINARY);
+        decoder.feed(first);
+        decoder.feed(second);
+        PacketHelper.Packet decoded = decoder.next();
+        assertEquals(PacketHelper.PacketType.MATH, decoded.getType());
+        assertEquals("client \u00e9", decoded.getSender());
+        assertEquals("sqrt(16) * 2", decoded.getContent());
+        assertEquals(300, decoded.getId());
+        assertEquals(math.getTimestamp(), decoded.getTimestamp());
+
+        decoded = decoder.next();
+        assertEquals(PacketHelper.PacketType.HEARTBEAT, decoded.getType());
+        assertNull(decoded.getContent());
+        assertFalse(decoded.hasId());
+        assertNull(decoder.next());
+
+        // a JSON frame is not a valid binary packet
+        decoder.feed(PacketHelper.ACK("server").toBuffer());
+        assertThrows(org.json.JSONException.class, decoder::next);
+    }
+
+    @Test
+    public void testStreamingJsonMatchesOrgJson() {
+        List<PacketHelper.Packet> packets = Arrays.asList(
+                PacketHelper.HEARTBEAT("server"),
+                PacketHelper.MATH("client", "sqrt(16) * 2", 12),
+                PacketHelper.DISCONNECT("a \"quoted\" \\ name", "line\nbreak\ttab \u0001 caf\u00e9 \ud83d\ude00"));
+        for (PacketHelper.Packet p : packets) {
+            // written by the streaming encoder, read by org.json
+            ByteBuffer frame = p.toBuffer();
+            String json = StandardCharsets.UTF_8.decode(frame.position(PacketHelper.FRAME_HEADER_SIZE)).toString();
+            assertSamePacket(p, new PacketHelper.Packet(json));
+
+            // written by org.json, read by the streaming decoder
+            byte[] bytes = p.jsonify().toString().getBytes(StandardCharsets.UTF_8);
+            assertSamePacket(p, PacketJson.decode(bytes, 0, bytes.length));
+        }
+
+        // any field order, whitespace and unknown fields
+        byte[] bytes = " { \"id\" : 3, \"extra\": {\"a\": [1, \"}\"]}, \"timestamp\":\"2023-10-01T12:00:00Z\",\"sender\":\"c\",\"type\":\"RESULT\"} ".getBytes(StandardCharsets.UTF_8);
+        PacketHelper.Packet p = PacketJson.decode(bytes, 0, bytes.length);
+        assertEquals(PacketHelper.PacketType.RESULT, p.getType());
+        assertEquals(3, p.getId());
+        assertEquals(java.time.Instant.parse("2023-10-01T12:00:00Z"), p.getTimestamp());
+
+        String[] invalid = {
+            "{\"type\":\"MATH\",\"sender\":\"c\"}",
+            "{\"type\":\"NOPE\",\"sender\":\"c\",\"timestamp\":\"2023-10-01T12:00:00Z\"}",
+            "{\"type\":\"MATH\",\"type\":\"MATH\",\"sender\":\"c\",\"timestamp\":\"2023-10-01T12:00:00Z\"}",
+            "{\"type\":\"MATH\",\"sender\":\"c\",\"timestamp\":\"yesterday\"}",
+            "{\"type\":\"MATH\",\"sender\":\"c\",\"timestamp\":\"2023-10-01T12:00:00Z\",\"id\":1.5}",
+            "{\"type\":\"MATH\",\"sender\":\"c\",\"timestamp\":\"2023-10-01T12:00:00Z\"} x",
+            "{\"type\":\"MATH\",\"sender\":\"c",
+        };
+        for (String json : invalid) {
+            byte[] b = json.getBytes(StandardCharsets.UTF_8);
+            assertThrows(org.json.JSONException.class, () -> PacketJson.decode(b, 0, b.length), json);
+        }
+    }
+
+    @Test
+    public void testPacketTemplates() {
+        PacketHelper.Template ack = new PacketHelper.Template(PacketHelper.PacketType.ACK, "Server/\"local\"");
+        for (PacketHelper.Codec codec : PacketHelper.Codec.values()) {
+            for (long id : new long[] { PacketHelper.NO_ID, 0, 300, Long.MAX_VALUE - 1 }) {
+                PacketHelper.Packet p = ack.packet(id);
+                ByteBuffer frame = p.toBuffer(codec);
+                // the cached frame is handed out again, unaffected by the first one being read
+                assertEquals(frame, p.toBuffer(codec));
+
+                PacketHelper.FrameDecoder decoder = new PacketHelper.FrameDecoder();
+                decoder.setCodec(codec);
+                decoder.feed(frame);
+                assertSamePacket(p, decoder.next());
+                assertFalse(decoder.hasRemaining());
+            }
+        }
+    }
+
+    private static void assertSamePacket(PacketHelper.Packet expected, PacketHelper.Packet actual) {
+        assertEquals(expected.getType(), actual.getType());
+        assertEquals(expected.getSender(), actual.getSender());
+        assertEquals(expected.getTimestamp(), actual.getTimestamp());
+        assertEquals(expected.getContent(), actual.getContent());
+        assertEquals(expected.getId(), actual.getId());
+    }
+
+    @Test
+    public void testWorkerPoolSaturation() throws InterruptedException {
+        for (WorkerPool.Saturation saturation : WorkerPool.Saturation.values()) {
+            WorkerPool pool = new WorkerPool(1, false, 0, saturation);
+            CountDownLatch release = new CountDownLatch(1);
+            CountDownLatch done = new CountDownLatch(1);
+            assertTrue(pool.submit(() -> {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                done.countDown();
+            }));
+            assertEquals(1, pool.getPending());
+
+            // the only worker is busy and there is no queue
+            Thread caller = Thread.currentThread();
+            Thread[] ranOn = new Thread[1];
+            boolean accepted = pool.submit(() -> ranOn[0] = Thread.currentThread());
+            if (saturation == WorkerPool.Saturation.REJECT) {
+                assertFalse(accepted);
+                assertNull(ranOn[0]);
+                assertEquals(1, pool.getRejectedCount());
+            } else {
+                assertTrue(accepted);
+                assertSame(caller, ranOn[0]);
+                assertEquals(1, pool.getCallerRunsCount());
+            }
+            release.countDown();
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testBufferPool() {
+        BufferPool pool = new BufferPool(64, 2, 1);
+        ByteBuffer first = pool.acquire();
+        ByteBuffer second = pool.acquire();
+        assertTrue(first.isDirect());
+        assertEquals(64, first.capacity());
+        assertEquals(2, pool.getCapacity());
+        assertEquals(2, pool.getInUse());
+
+        // the only slab is used up, so this one is a miss
+        ByteBuffer third = pool.acquire();
+        assertFalse(third.isDirect());
+        assertEquals(1, pool.getMisses());
+
+        first.put((byte) 1);
+        pool.release(first);
+        pool.release(second);
+        pool.release(third);
+        assertEquals(0, pool.getInUse());
+
+        // released buffers come back cleared, without allocating another slab
+        ByteBuffer reused = pool.acquire();
+        assertEquals(0, reused.position());
+        assertEquals(1, pool.getSlabs());
+        assertEquals(1, pool.getMisses());
+    }
+
+    @Test
+    public void testTimingWheel() {
+        // 4 slots of 10ns, so a turn of the wheel is 40ns
+        TimingWheel<String> wheel = new TimingWheel<String>(10, 4, 0);
+        wheel.schedule("soon", 15);
+        wheel.schedule("later", 95);
+        wheel.schedule("past", -100);
+        assertEquals(3, wheel.size());
+
+        List<String> expired = new ArrayList<String>();
+        wheel.advance(20, expired::add);
+        // a deadline already passed fires on the next tick
+        assertEquals(Arrays.asList("past", "soon"), expired);
+
+        // "later" shares a slot with tick 2 and 6 but is only due on the third turn
+        expired.clear();
+        wheel.advance(90, expired::add);
+        assertTrue(expired.isEmpty());
+        wheel.advance(100, item -> {
+            expired.add(item);
+            wheel.schedule("again", 100);
+        });
+        assertEquals(Arrays.asList("later"), expired);
+        // rescheduling from the callback never fires in the same tick
+        assertEquals(1, wheel.size());
+        assertEquals(10, wheel.nanosUntilNextTick(100));
+        expired.clear();
+        wheel.advance(110, expired::add);
+        assertEquals(Arrays.asList("again"), expired);
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testAsyncLogger() throws InterruptedException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AsyncLogger logger = new AsyncLogger(out, true, 64, App.LogLevel.INFO, AsyncLogger.Overflow.BLOCK);
+        // more messages than fit in the buffer, from several threads at once
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            int id = t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    logger.log("t" + id + " " + i, App.LogLevel.INFO);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        logger.log("hidden", App.LogLevel.DEBUG);
+        logger.close();
+
+        String[] lines = out.toString(StandardCharsets.UTF_8).split("\n");
+        assertEquals(4000, lines.length);
+        assertEquals(0, logger.getDropped());
+        int[] next = new int[threads.length];
+        for (String line : lines) {
+            assertTrue(line.matches("\\[\\d\\d:\\d\\d:\\d\\d\\.\\d{3}\\] \\[INFO\\] t\\d \\d+"), line);
+            String[] parts = line.substring(line.indexOf("] t") + 3).split(" ");
+            // each thread's messages stay in the order they were logged
+            assertEquals(next[Integer.parseInt(parts[0])]++, Integer.parseInt(parts[1]));
+        }
+
+        // messages below the level are never built
+        assertFalse(App.isLoggable(App.LogLevel.DEBUG));
+        App.log(() -> fail("DEBUG message was built"), App.LogLevel.DEBUG);
+    }
+
+    @Test
+    public void testAsyncLoggerDrops() throws InterruptedException {
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ByteArrayOutputStream out = new ByteArrayOutputStream() {
+            @Override
+            public void flush() {
+                // a console that can't keep up
+                blocked.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        AsyncLogger logger = new AsyncLogger(out, true, 4, App.LogLevel.INFO, AsyncLogger.Overflow.DROP);
+        logger.log("first", App.LogLevel.INFO);
+        assertTrue(blocked.await(5, TimeUnit.SECONDS));
+        // the writer is stuck flushing the first message, so only 4 of these fit
+        for (int i = 0; i < 20; i++) {
+            logger.log("message " + i, App.LogLevel.INFO);
+        }
+        assertEquals(16, logger.getDropped());
+        release.countDown();
+        logger.flush();
+        logger.log("after", App.LogLevel.INFO);
+        logger.close();
+
+        String[] lines = out.toString(StandardCharsets.UTF_8).split("\\n");
+        assertEquals(7, lines.length);
+        assertTrue(lines[4].endsWith("message 3"));
+        assertTrue(lines[5].endsWith("[WARN] Dropped 16 log messages, the log buffer was full"));
+        assertTrue(lines[6].endsWith("after"));
+    }
+
+    @Test
+    public void testAsyncLoggerWriterFails() throws InterruptedException {
+        OutputStream out = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("No space left on device");
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                throw new IOException("No space left on device");
+            }
+        };
+        AsyncLogger logger = new AsyncLogger(out, true, 4, App.LogLevel.INFO, AsyncLogger.Overflow.BLOCK);
+        // far more than fit in the buffer, logging has to keep returning once the writer has died
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < 10_000; i++) {
+                logger.log("message " + i, App.LogLevel.INFO);
+            }
+        });
+        producer.start();
+        producer.join(5000);
+        assertFalse(producer.isAlive(), "Logging blocked after the writer failed");
+        assertTrue(logger.getDropped() > 0);
+        assertEquals(0, logger.getWritten());
+        logger.close();
+    }
+
+    @Test
+    public void testServerOptionSizes() {
+        Server.Options options = App.serverOptions(App.parseArgs(new String[] { "-server", "-highwater", "2097151", "-readbuffer", "64" }));
+        assertEquals(2_097_151 * 1024, options.writeHighWater);
+        assertEquals(64 * 1024, options.readBufferSize);
+        // nine digits always parse, but that many KB don't fit in an int
+        Map<String, Object> highWater = App.parseArgs(new String[] { "-server", "-highwater", "999999999" });
+        assertEquals(999_999_999, highWater.get("highwater"));
+        assertThrows(IllegalArgumentException.class, () -> App.serverOptions(highWater));
+        Map<String, Object> readBuffer = App.parseArgs(new String[] { "-server", "-readbuffer", "2097152" });
+        assertThrows(IllegalArgumentException.class, () -> App.serverOptions(readBuffer));
+    }
+
+    @Test
+    public void testHistogram() throws InterruptedException {
+        // buckets line up with no gaps, and every value lands in the bucket that covers it
+        for (int bucket = 1; bucket < 900; bucket++) {
+            assertEquals(Histogram.highestValueOf(bucket - 1) + 1, Histogram.lowestValueOf(bucket));
+        }
+        for (long value : new long[] { 0, 31, 32, 33, 1000, 123_456_789, Long.MAX_VALUE }) {
+            int bucket = Histogram.bucketOf(value);
+            assertTrue(Histogram.lowestValueOf(bucket) <= value && value <= Histogram.highestValueOf(bucket), "" + value);
+        }
+
+        Histogram histogram = new Histogram();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 1; i <= 10_000; i++) {
+                    histogram.record(i * 1000L);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(40_000, snapshot.getCount());
+        assertEquals(10_000_000, snapshot.getMax());
+        assertEquals(5_000_500, snapshot.getMean(), 1);
+        // within the precision of a bucket
+        assertEquals(5_000_000, snapshot.getValueAtPercentile(50), 5_000_000 / 16.0);
+        assertEquals(9_900_000, snapshot.getValueAtPercentile(99), 9_900_000 / 16.0);
+        assertEquals(10_000_000, snapshot.getValueAtPercentile(100));
+    }
 }
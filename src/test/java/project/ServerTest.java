@@ -0,0 +1,678 @@
+package project;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import static org.junit.jupiter.api.Assertions.*;
+
+import project.PacketHelper.Packet;
+import project.PacketHelper.PacketType;
+
+/**
+ * Protocol tests run against every server mode, talking to a real server over loopback.
+ */
+class ServerTest {
+    private static final String HOST = "127.0.0.1";
+    private static final long TIMEOUT_MS = 5000;
+
+    private Runnable stopServer;
+    // the server started in reactor mode, for checking its counters
+    private Server server;
+    // the metrics of the server started in either mode
+    private ServerMetrics metrics;
+    private final List<TestClient> clients = new ArrayList<TestClient>();
+
+    @AfterEach
+    public void tearDown() {
+        for (TestClient client : clients) {
+            client.close();
+        }
+        if (stopServer != null) stopServer.run();
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "reactor", "vthreads" })
+    public void testConnectAndEvaluate(String mode) throws IOException {
+        TestClient client = connect(startServer(mode), "alice");
+        client.send(PacketHelper.MATH(client, "2 + 2", 1));
+        Packet ack = client.receive();
+        assertEquals(PacketType.ACK, ack.getType());
+        assertEquals(1, ack.getId());
+        Packet result = client.receive();
+        assertEquals(PacketType.RESULT, result.getType());
+        assertEquals(1, result.getId());
+        assertEquals("4.0", result.getContent());
+
+        client.send(PacketHelper.MATH(client, "2 +", 2));
+        client.receive();
+        assertEquals("Expression Invalid", client.receive().getContent());
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "reactor", "vthreads" })
+    public void testBatch(String mode) throws IOException {
+        TestClient client = connect(startServer(mode), "alice");
+        client.send(PacketHelper.MATH_BATCH(client, Arrays.asList("1 + 1", "sqrt(", "3 * 3"), 5));
+        assertEquals(PacketType.ACK, client.receive().getType());
+        Packet result = client.receive();
+        assertEquals(PacketType.RESULT_BATCH, result.getType());
+        assertEquals(5, result.getId());
+        List<PacketHelper.BatchResult> results = PacketHelper.parseBatchResults(result.getContent());
+        assertEquals("2.0", results.get(0).getResult());
+        assertTrue(results.get(1).isError());
+        assertEquals("9.0", results.get(2).getResult());
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "reactor", "vthreads" })
+    public void testPipelinedResultsInOrder(String mode) throws IOException {
+        TestClient client = connect(startServer(mode), "alice");
+        // all requests go out in a single write before any result is read
+        int count = 200;
+        List<ByteBuffer> frames = new ArrayList<ByteBuffer>();
+        int size = 0;
+        for (int i = 0; i < count; i++) {
+            ByteBuffer frame = PacketHelper.MATH(client, i + " * 2", i).toBuffer();
+            frames.add(frame);
+            size += frame.remaining();
+        }
+        ByteBuffer all = ByteBuffer.allocate(size);
+        frames.forEach(all::put);
+        client.write(all.flip());
+
+        int next = 0;
+        while (next < count) {
+            Packet p = client.receive();
+            if (p.getType() != PacketType.RESULT) continue;
+            assertEquals(next, p.getId());
+            assertEquals("" + (next * 2.0), p.getContent());
+            next++;
+        }
+    }
+
+    @Test
+    public void testPipelinedWritesAreGathered() throws IOException {
+        testPipelinedResultsInOrder("reactor");
+        // an ACK per request is written together with whatever else was sent in the same iteration
+        assertTrue(server.getFramesWritten() >= 400);
+        assertTrue(server.getWriteCallsSaved() > 0, "No writes were gathered: " + server.getWriteCalls() + " writes for " + server.getFramesWritten() + " frames");
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "reactor", "vthreads" })
+    public void testSlowReaderGetsEveryResult(String mode) throws IOException, InterruptedException {
+        TestClient client = connect(startServer(mode), "alice");
+        // far more responses than fit in the socket buffers, so the server has to queue them and stop reading for a while
+        int count = 20_000;
+        Thread writer = new Thread(() -> {
+            try {
+                for (int i = 0; i < count; i++) {
+                    client.send(PacketHelper.MATH(client, i + " + 1", i));
+                }
+            } catch (IOException e) {
+                // the reader fails the test
+            }
+        });
+        writer.start();
+        Thread.sleep(500);
+
+        int next = 0;
+        while (next < count) {
+            Packet p = client.receive();
+            if (p.getType() != PacketType.RESULT) continue;
+            assertEquals(next, p.getId());
+            assertEquals("" + (next + 1.0), p.getContent());
+            next++;
+        }
+        writer.join();
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "reactor", "vthreads" })
+    public void testBinaryCodec(String mode) throws IOException {
+        TestClient client = open(startServer(mode), "alice");
+        client.send(PacketHelper.CONNECT(client, PacketHelper.Codec.BINARY));
+        Packet ack = client.receive();
+        assertEquals(PacketType.ACK, ack.getType());
+        assertEquals(PacketHelper.Codec.BINARY, PacketHelper.codecOf(ack));
+
+        // everything after the ACK to CONNECT is binary, both ways
+        client.setCodec(PacketHelper.Codec.BINARY);
+        client.send(PacketHelper.ACK(client));
+        client.send(PacketHelper.MATH(client, "6 * 7", 3));
+        assertEquals(3, client.receive().getId());
+        Packet result = client.receive();
+        assertEquals(PacketType.RESULT, result.getType());
+        assertEquals(3, result.getId());
+        assertEquals("42.0", result.getContent());
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "reactor", "vthreads" })
+    public void testDuplicateNameRejected(String mode) throws IOException {
+        int port = startServer(mode);
+        TestClient first = connect(port, "alice");
+        TestClient second = open(port, "alice");
+        second.send(PacketHelper.CONNECT(second));
+        assertEquals(PacketType.DISCONNECT, second.receive().getType());
+        assertTrue(second.isClosedByServer());
+
+        // the first client is unaffected
+        first.send(PacketHelper.MATH(first, "1 + 2", 0));
+        first.receive();
+        assertEquals("3.0", first.receive().getContent());
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "reactor", "vthreads" })
+    public void testDisconnectFreesName(String mode) throws IOException, InterruptedException {
+        int port = startServer(mode);
+        TestClient first = connect(port, "alice");
+        first.send(PacketHelper.DISCONNECT(first, "bye"));
+        assertTrue(first.isClosedByServer());
+        awaitName(port, "alice");
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "reactor", "vthreads" })
+    public void testNameFreedOnEveryRemoval(String mode) throws IOException, InterruptedException {
+        int port = startServer(mode, heartbeatOptions());
+        // I/O error
+        TestClient client = connect(port, "alice");
+        client.close();
+        // invalid packet
+        client = awaitName(port, "alice");
+        client.send(PacketHelper.RESULT(client, "4.0"));
+        assertTrue(client.isClosedByServer());
+        // heartbeat timeout
+        client = awaitName(port, "alice");
+        assertEquals(PacketType.HEARTBEAT, client.receive().getType());
+        assertTrue(client.isClosedByServer());
+        // a second CONNECT with the name it already has
+        client = awaitName(port, "alice");
+        client.send(PacketHelper.CONNECT(client));
+        assertEquals(PacketType.DISCONNECT, client.receive().getType());
+        assertTrue(client.isClosedByServer());
+        awaitName(port, "alice");
+    }
+
+    @Test
+    public void testNameIndexFlat() throws IOException {
+        // the index on its own, without sockets, so it can be filled far past what the open file limit allows for real clients
+        Server server = new Server(HOST, 0);
+        try {
+            List<Server.ClientStatus> held = new ArrayList<Server.ClientStatus>();
+            // warm up, so the first measurement isn't the slow one
+            measureNameClaims(server, held, 100);
+            long small = measureNameClaims(server, held, 1_000);
+            long large = measureNameClaims(server, held, 50_000);
+            // checking the name used to go through every session, at 50k sessions that's tens of microseconds per claim
+            assertTrue(large < small * 5 + 1_000, "Claiming a name took " + large + " ns with 50000 names, " + small + " ns with 1000");
+
+            // names held by other clients are refused, and only freed by their holder
+            Server.ClientStatus impostor = new Server.ClientStatus("idle0", Instant.EPOCH, null, null, 0);
+            assertFalse(server.claimName(impostor));
+            server.releaseName(impostor);
+            assertFalse(server.claimName(impostor));
+            server.releaseName(held.get(0));
+            assertTrue(server.claimName(impostor));
+        } finally {
+            server.stop();
+        }
+    }
+
+    /**
+     * Fills the server's name index up to the given size, then claims and releases other names on top of it.
+     *
+     * @param held the clients holding names so far, added to
+     * @return the best over a few rounds of the average nanos to claim or release a name
+     */
+    private static long measureNameClaims(Server server, List<Server.ClientStatus> held, int size) {
+        for (int i = held.size(); i < size; i++) {
+            Server.ClientStatus cs = new Server.ClientStatus("idle" + i, Instant.EPOCH, null, null, 0);
+            assertTrue(server.claimName(cs));
+            held.add(cs);
+        }
+        Server.ClientStatus[] clients = new Server.ClientStatus[1000];
+        for (int i = 0; i < clients.length; i++) {
+            clients[i] = new Server.ClientStatus("client" + i, Instant.EPOCH, null, null, 0);
+        }
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < 20; round++) {
+            long start = System.nanoTime();
+            for (Server.ClientStatus cs : clients) {
+                assertTrue(server.claimName(cs));
+            }
+            for (Server.ClientStatus cs : clients) {
+                server.releaseName(cs);
+            }
+            best = Math.min(best, (System.nanoTime() - start) / (2 * clients.length));
+        }
+        return best;
+    }
+
+    /**
+     * Connects with the given name, retrying until the server has freed it.
+     *
+     * @return the connected client
+     */
+    private TestClient awaitName(int port, String name) throws IOException, InterruptedException {
+        // the server may take a moment to notice
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (true) {
+            TestClient client = open(port, name);
+            client.send(PacketHelper.CONNECT(client));
+            if (client.receive().getType() == PacketType.ACK) {
+                client.send(PacketHelper.ACK(client));
+                return client;
+            }
+            assertTrue(System.currentTimeMillis() < deadline, "Name was not freed");
+            Thread.sleep(50);
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "reactor", "vthreads" })
+    public void testPacketBeforeConnectRejected(String mode) throws IOException {
+        TestClient client = open(startServer(mode), "alice");
+        client.send(PacketHelper.MATH(client, "1 + 1"));
+        assertEquals(PacketType.DISCONNECT, client.receive().getType());
+        assertTrue(client.isClosedByServer());
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "reactor", "vthreads" })
+    public void testWrongSenderRejected(String mode) throws IOException {
+        TestClient client = connect(startServer(mode), "alice");
+        client.send(PacketHelper.MATH("mallory", "1 + 1"));
+        assertEquals(PacketType.DISCONNECT, client.receive().getType());
+        assertTrue(client.isClosedByServer());
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "reactor", "vthreads" })
+    public void testResultFromClientRejected(String mode) throws IOException {
+        TestClient client = connect(startServer(mode), "alice");
+        client.send(PacketHelper.RESULT(client, "4.0"));
+        assertEquals(PacketType.DISCONNECT, client.receive().getType());
+        assertTrue(client.isClosedByServer());
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "reactor", "vthreads" })
+    public void testInvalidFrameDropsClient(String mode) throws IOException {
+        TestClient client = connect(startServer(mode), "alice");
+        byte[] garbage = "not json".getBytes(StandardCharsets.UTF_8);
+        client.write(ByteBuffer.allocate(4 + garbage.length).putInt(garbage.length).put(garbage).flip());
+        assertTrue(client.isClosedByServer());
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "reactor", "vthreads" })
+    public void testMathTimestampNotParsed(String mode) throws IOException {
+        TestClient client = connect(startServer(mode), "alice");
+        // has the right shape, so it gets through decoding, but February 31st fails to parse
+        Packet p = new Packet(PacketType.MATH, client.toString(), null, "2023-02-31T00:00:00Z", "2 + 2", 3);
+        client.send(p);
+        assertEquals(PacketType.ACK, client.receive().getType());
+        Packet result = client.receive();
+        assertEquals(PacketType.RESULT, result.getType());
+        assertEquals("4.0", result.getContent());
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "reactor", "vthreads" })
+    public void testMetrics(String mode) throws IOException, InterruptedException {
+        int port = startServer(mode);
+        TestClient client = connect(port, "alice");
+        for (int i = 0; i < 10; i++) {
+            client.send(PacketHelper.MATH(client, i + " * 2", i));
+            client.receive();
+            client.receive();
+        }
+        TestClient bad = connect(port, "bob");
+        bad.send(PacketHelper.RESULT(bad, "4.0"));
+        assertTrue(bad.isClosedByServer());
+        // the server may free the session just after closing the socket
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (metrics.snapshot().getSessions() != 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+
+        ServerMetrics.Snapshot snapshot = metrics.snapshot();
+        assertEquals(10, snapshot.getPacketsIn(PacketType.MATH));
+        assertEquals(2, snapshot.getPacketsIn(PacketType.CONNECT));
+        assertEquals(10, snapshot.getPacketsOut(PacketType.RESULT));
+        assertEquals(10, snapshot.getEval().getCount());
+        assertEquals(1, snapshot.getDrops(ServerMetrics.DropReason.INVALID_PACKET));
+        assertEquals(1, snapshot.getSessions());
+        assertTrue(snapshot.getBytesIn() > 0);
+        assertTrue(snapshot.getBytesOut() > 0);
+        assertTrue(snapshot.getWrite().getCount() > 0);
+        if (mode.equals("reactor")) assertEquals(10, snapshot.getQueueWait().getCount());
+        assertTrue(snapshot.toString().contains("eval: count=10"), snapshot.toString());
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "reactor", "vthreads" })
+    public void testMetricsEndpoint(String mode) throws IOException {
+        Server.Options options = testOptions();
+        options.metricsPort = freePort();
+        TestClient client = connect(startServer(mode, options), "alice");
+        client.send(PacketHelper.MATH(client, "1 + 1", 1));
+        client.receive();
+        client.receive();
+
+        HttpURLConnection http = (HttpURLConnection) URI.create("http://" + HOST + ":" + options.metricsPort + "/metrics").toURL().openConnection();
+        assertEquals(200, http.getResponseCode());
+        assertTrue(http.getContentType().startsWith("text/plain; version=0.0.4"));
+        String body;
+        try (InputStream in = http.getInputStream()) {
+            body = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        assertTrue(body.contains("\nmathserver_sessions 1\n"), body);
+        assertTrue(body.contains("\nmathserver_packets_received_total{type=\"MATH\"} 1\n"), body);
+        assertTrue(body.contains("\nmathserver_requests_total 1\n"), body);
+        assertTrue(body.contains("\nmathserver_eval_seconds{quantile=\"0.99\"} "), body);
+        assertTrue(body.contains("\nmathserver_eval_seconds_count 1\n"), body);
+        assertTrue(body.contains("\nmathserver_drops_total{reason=\"heartbeat_timeout\"} 0\n"), body);
+        assertTrue(body.contains("\njvm_gc_collections_total{gc="), body);
+        // every line is a comment or a sample with a numeric value
+        for (String line : body.split("\n")) {
+            assertTrue(line.startsWith("# ") || line.matches("[a-z_]+(\\{[a-z]+=\"[^\"]*\"\\})? [0-9.E-]+"), line);
+        }
+
+        HttpURLConnection post = (HttpURLConnection) URI.create("http://" + HOST + ":" + options.metricsPort + "/metrics").toURL().openConnection();
+        post.setRequestMethod("POST");
+        assertEquals(405, post.getResponseCode());
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "reactor", "vthreads" })
+    public void testIdleClientGetsHeartbeat(String mode) throws IOException {
+        TestClient client = connect(startServer(mode, heartbeatOptions()), "alice");
+        // answering keeps the client connected, so the next heartbeat comes too
+        for (int i = 0; i < 2; i++) {
+            assertEquals(PacketType.HEARTBEAT, client.receive().getType());
+            client.send(PacketHelper.HEARTBEAT(client));
+        }
+        client.send(PacketHelper.MATH(client, "1 + 1", 1));
+        assertEquals(PacketType.ACK, client.receive().getType());
+        assertEquals("2.0", client.receive().getContent());
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "reactor", "vthreads" })
+    public void testSilentClientDropped(String mode) throws IOException {
+        TestClient client = connect(startServer(mode, heartbeatOptions()), "alice");
+        assertEquals(PacketType.HEARTBEAT, client.receive().getType());
+        assertEquals(PacketType.DISCONNECT, client.receive().getType());
+        assertTrue(client.isClosedByServer());
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "reactor", "vthreads" })
+    public void testActiveClientNotPinged(String mode) throws IOException, InterruptedException {
+        TestClient client = connect(startServer(mode, heartbeatOptions()), "alice");
+        // a request every 50ms for several heartbeat intervals, the traffic alone shows the client is alive
+        for (int i = 0; i < 30; i++) {
+            client.send(PacketHelper.MATH(client, i + " + 1", i));
+            assertEquals(PacketType.ACK, client.receive().getType());
+            assertEquals(PacketType.RESULT, client.receive().getType());
+            Thread.sleep(50);
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "reactor", "vthreads" })
+    public void testUnacknowledgedConnectDropped(String mode) throws IOException {
+        TestClient client = open(startServer(mode, heartbeatOptions()), "alice");
+        client.send(PacketHelper.CONNECT(client));
+        assertEquals(PacketType.ACK, client.receive().getType());
+        // never sends the ACK back
+        assertEquals(PacketType.DISCONNECT, client.receive().getType());
+        assertTrue(client.isClosedByServer());
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "reactor", "vthreads" })
+    public void testStuckClientDoesNotStopHeartbeats(String mode) throws IOException, InterruptedException {
+        int port = startServer(mode, heartbeatOptions());
+        TestClient stuck = connect(port, "stuck");
+
+        // requests without ever reading the results, until the socket buffers fill up both ways and the server stops reading
+        ByteBuffer requests = ByteBuffer.allocate(64 * 1024);
+        for (int i = 0; requests.remaining() > 1024; i++) {
+            requests.put(PacketHelper.MATH(stuck, i + " + 1", i).toBuffer());
+        }
+        requests.flip();
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        int stalls = 0;
+        while (stalls < 20) {
+            assertTrue(System.currentTimeMillis() < deadline, "Server never stopped reading");
+            if (!requests.hasRemaining()) requests.rewind();
+            if (stuck.offer(requests)) {
+                stalls = 0;
+            } else {
+                stalls++;
+                Thread.sleep(10);
+            }
+        }
+
+        // the stuck client's heartbeat comes due and can't be written, another client keeps getting its own
+        TestClient alive = connect(port, "alive");
+        for (int i = 0; i < 4; i++) {
+            assertEquals(PacketType.HEARTBEAT, alive.receive().getType());
+            alive.send(PacketHelper.HEARTBEAT(alive));
+        }
+        // and the stuck client is dropped, even though its DISCONNECT can't be written either
+        while (metrics.snapshot().getDrops(ServerMetrics.DropReason.HEARTBEAT_TIMEOUT) == 0) {
+            assertTrue(System.currentTimeMillis() < deadline + TIMEOUT_MS, "Stuck client was not dropped");
+            Thread.sleep(20);
+        }
+        alive.send(PacketHelper.MATH(alive, "1 + 1", 1));
+        assertEquals(PacketType.ACK, alive.receive().getType());
+        assertEquals("2.0", alive.receive().getContent());
+    }
+
+    /**
+     * @return options with heartbeats short enough to test
+     */
+    private static Server.Options heartbeatOptions() {
+        Server.Options options = testOptions();
+        options.heartbeatInterval = 300;
+        options.heartbeatTimeout = 300;
+        return options;
+    }
+
+    private static Server.Options testOptions() {
+        Server.Options options = new Server.Options();
+        options.reactors = 2;
+        options.workers = 2;
+        options.writeHighWater = 16 * 1024;
+        return options;
+    }
+
+    private int startServer(String mode) throws IOException {
+        return startServer(mode, testOptions());
+    }
+
+    /**
+     * Starts a server in the given mode on a free port, in the background.
+     *
+     * @return the port the server listens on
+     */
+    private int startServer(String mode, Server.Options options) throws IOException {
+        int port = freePort();
+        Thread thread;
+        if (mode.equals("vthreads")) {
+            VirtualThreadServer server = new VirtualThreadServer(HOST, port, options);
+            thread = new Thread(server::start);
+            stopServer = server::stop;
+            metrics = server.getMetrics();
+        } else {
+            server = new Server(HOST, port, options);
+            thread = new Thread(server::start);
+            stopServer = server::stop;
+            metrics = server.getMetrics();
+        }
+        thread.setDaemon(true);
+        thread.start();
+
+        // wait until the server accepts connections
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (true) {
+            try {
+                SocketChannel.open(new InetSocketAddress(HOST, port)).close();
+                return port;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) throw e;
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e1) {
+                    throw new IOException(e1);
+                }
+            }
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private TestClient open(int port, String name) throws IOException {
+        TestClient client = new TestClient(port, name);
+        clients.add(client);
+        return client;
+    }
+
+    /**
+     * Opens a connection and goes through the CONNECT, ACK, ACK handshake.
+     */
+    private TestClient connect(int port, String name) throws IOException {
+        TestClient client = open(port, name);
+        client.send(PacketHelper.CONNECT(client));
+        assertEquals(PacketType.ACK, client.receive().getType());
+        client.send(PacketHelper.ACK(client));
+        return client;
+    }
+
+    /**
+     * A bare protocol client, reading with a timeout so a broken server fails the test instead of hanging it.
+     */
+    private static class TestClient {
+        private final String name;
+        private final SocketChannel socket;
+        private final Selector selector;
+        private final PacketHelper.FrameDecoder decoder = new PacketHelper.FrameDecoder();
+        private final ByteBuffer buffer = ByteBuffer.allocate(4096);
+        private boolean eof;
+        private PacketHelper.Codec codec = PacketHelper.Codec.JSON;
+
+        TestClient(int port, String name) throws IOException {
+            this.name = name;
+            this.socket = SocketChannel.open(new InetSocketAddress(HOST, port));
+            this.socket.configureBlocking(false);
+            this.selector = Selector.open();
+            this.socket.register(selector, SelectionKey.OP_READ);
+        }
+
+        void send(Packet p) throws IOException {
+            write(p.toBuffer(codec));
+        }
+
+        void setCodec(PacketHelper.Codec codec) {
+            this.codec = codec;
+            decoder.setCodec(codec);
+        }
+
+        void write(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                socket.write(buffer);
+            }
+        }
+
+        /**
+         * Writes as much as the socket takes right now.
+         *
+         * @return false if the socket buffers are full and nothing was written
+         */
+        boolean offer(ByteBuffer buffer) throws IOException {
+            return socket.write(buffer) > 0;
+        }
+
+        /**
+         * @return the next packet from the server
+         */
+        Packet receive() throws IOException {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while (true) {
+                Packet p = decoder.next();
+                if (p != null) return p;
+                assertFalse(eof, "Server closed the connection");
+                fill(deadline);
+            }
+        }
+
+        /**
+         * Reads and drops everything until the server closes the connection.
+         *
+         * @return true if the server closed the connection before the timeout
+         */
+        boolean isClosedByServer() throws IOException {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while (!eof && System.currentTimeMillis() < deadline) {
+                fill(deadline);
+            }
+            return eof;
+        }
+
+        private void fill(long deadline) throws IOException {
+            long wait = deadline - System.currentTimeMillis();
+            assertTrue(wait > 0, "Timed out waiting for the server");
+            selector.select(wait);
+            selector.selectedKeys().clear();
+            buffer.clear();
+            int read;
+            try {
+                read = socket.read(buffer);
+            } catch (IOException e) {
+                read = -1;
+            }
+            if (read < 0) {
+                eof = true;
+                return;
+            }
+            decoder.feed(buffer.flip());
+        }
+
+        void close() {
+            Server.tryClose(selector);
+            Server.tryClose(socket);
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+}